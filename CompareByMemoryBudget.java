@@ -1,25 +1,99 @@
 import java.io.*;
 import java.util.*;
-import java.util.regex.*;
+import java.util.concurrent.*;
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.ChartFrame;
+import org.jfree.chart.ChartUtils;
 import org.jfree.chart.JFreeChart;
 import org.jfree.chart.plot.PlotOrientation;
 import org.jfree.data.category.DefaultCategoryDataset;
 import org.jfree.chart.plot.CategoryPlot;
-import org.jfree.chart.axis.NumberAxis;
-import org.jfree.chart.plot.CategoryPlot;
 import org.jfree.chart.renderer.category.LineAndShapeRenderer;
 import java.awt.BasicStroke;
 import java.awt.Color;
+import java.awt.GraphicsEnvironment;
 
 
 
+// Runs every method x budget x seed configuration inside this JVM, sharing one loaded dataset.
+// --threads sizes the pool for loading and warmup; the timed runs use --timing_threads (default 1)
+// so their train times are not skewed by other runs competing for cores and memory bandwidth.
+// Flags (all optional):
+//   --train=<file>  --threads=<n>  --timing_threads=<n>  --seeds=<n>  --warmup=<n>  --topk=<n>
+//   --csv=<file>  --json=<file>  --png=<dir> (writes charts instead of opening windows)
+//   --strict_budget (fail instead of warning when a model is larger than its budget)
+//   --counters=float,half,int8 (sketch counter types to compare; narrower counters get a
+//                               proportionally wider sketch for the same budget)
 public class CompareByMemoryBudget {
 
-    public static void main(String[] args) {
-        boolean debug = true;
-        String trainFile = "./data/rcv1_test.binary";
+    static class RunResult {
+        String method;
+        String budget;
+        int seed;
+        double errorRate;
+        double trainTimeMs;
+        WMSketchClassification.MemoryFootprint footprint;
+        RunResult(String method, String budget, int seed, double errorRate, double trainTimeMs,
+                  WMSketchClassification.MemoryFootprint footprint) {
+            this.method = method;
+            this.budget = budget;
+            this.seed = seed;
+            this.errorRate = errorRate;
+            this.trainTimeMs = trainTimeMs;
+            this.footprint = footprint;
+        }
+    }
+
+    // Mean and half-width of the 95% Student-t confidence interval
+    static class Summary {
+        double mean;
+        double ci95;
+        Summary(List<Double> samples) {
+            int n = samples.size();
+            for (double x : samples) {
+                mean += x;
+            }
+            mean /= n;
+            if (n > 1) {
+                double variance = 0;
+                for (double x : samples) {
+                    variance += (x - mean) * (x - mean);
+                }
+                variance /= n - 1;
+                ci95 = tQuantile975(n - 1) * Math.sqrt(variance / n);
+            }
+        }
+    }
+
+    static final double[] T_975 = {
+        12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+        2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086
+    };
+
+    static double tQuantile975(int degreesOfFreedom) {
+        return degreesOfFreedom <= T_975.length ? T_975[degreesOfFreedom - 1] : 1.96;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> argMap = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                String[] parts = arg.substring(2).split("=", 2);
+                argMap.put(parts[0], parts.length > 1 ? parts[1] : "");
+            }
+        }
+        String trainFile = argMap.getOrDefault("train", "./data/rcv1_test.binary");
+        int threads = Integer.parseInt(argMap.getOrDefault("threads",
+                          String.valueOf(Runtime.getRuntime().availableProcessors())));
+        int timingThreads = Integer.parseInt(argMap.getOrDefault("timing_threads", "1"));
+        int seeds = Integer.parseInt(argMap.getOrDefault("seeds", "3"));
+        int warmup = Integer.parseInt(argMap.getOrDefault("warmup", "1"));
+        int topKFeatures = Integer.parseInt(argMap.getOrDefault("topk", "512"));
+        boolean strictBudget = argMap.containsKey("strict_budget");
+        float learningRateInitial = 0.1f;
+        float regularizationFactor = 1e-6f;
 
         String[] methods = {
             "UncompressedLogisticRegression",
@@ -33,108 +107,197 @@ public class CompareByMemoryBudget {
         memoryConfigs.put("8KB", new int[]{9, 4});
         memoryConfigs.put("64KB", new int[]{11, 8});
 
-        Pattern errorPattern = Pattern.compile("(?i).*train error rate\\s*[:=]\\s*([-+]?[0-9]*\\.?[0-9]+).*");
-        Pattern timePattern = Pattern.compile("(?i).*train time \\(ms\\):\\s*([-+]?[0-9]*\\.?[0-9]+).*");
+        // One series per method and counter type, e.g. "AWMsketch:half"; the dense model has no counters
+        String[] counterTypes = argMap.getOrDefault("counters", "float").split(",");
+        List<String> seriesList = new ArrayList<>();
+        for (String method : methods) {
+            if (!method.equals("WMSketch") && !method.equals("AWMsketch")) {
+                seriesList.add(method);
+                continue;
+            }
+            for (String counters : counterTypes) {
+                seriesList.add(counters.equals("float") ? method : method + ":" + counters);
+            }
+        }
+        String[] series = seriesList.toArray(new String[0]);
 
-        Map<String, Map<String, Double>> errorRateMap = new LinkedHashMap<>();
-        Map<String, Map<String, Double>> runtimeMap = new LinkedHashMap<>();
+        long sweepStart = System.currentTimeMillis();
+        System.err.println("Reading training data from " + trainFile);
+        WMSketchClassification.CsrDataset dataset = WMSketchClassification.loadLibSVM(trainFile, threads,
+            System.getProperty("java.io.tmpdir") + File.separator + "wmsketch-cache");
+        int dimensionality = dataset.dimensionality;
 
-        for (String method : methods) {
-            Map<String, Double> methodErrors = new LinkedHashMap<>();
-            Map<String, Double> methodRuntimes = new LinkedHashMap<>();
+        // The budget is the counter array alone (width x depth x 4 bytes); check what each
+        // model actually allocates against it before spending time on training
+        boolean overBudget = false;
+        for (String name : series) {
             for (Map.Entry<String, int[]> entry : memoryConfigs.entrySet()) {
-                String label = entry.getKey();
-                int[] config = entry.getValue();
-                int Width_of_table = config[0];
-                int depth = config[1];
-
-                List<String> command = new ArrayList<>();
-                command.add("java");
-                command.add("-cp");
-                command.add("json.jar:.:jfreechart-1.5.0.jar:jcommon-1.0.23.jar");
-                command.add("WMSketchClassification");
-                command.add("--train=" + trainFile);
-                command.add("--method=" + method);
-                command.add("--log2_width=" + Width_of_table);
-                command.add("--depth=" + depth);
-
-                ProcessBuilder pb = new ProcessBuilder(command);
-                pb.redirectErrorStream(true);
-                try {
-                    Process process = pb.start();
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-                    StringBuilder outputBuilder = new StringBuilder();
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        outputBuilder.append(line).append("\n");
-                    }
-                    process.waitFor();
-                    String outputStr = outputBuilder.toString();
-
-                    Matcher mError = errorPattern.matcher(outputStr);
-                    double trainErrRate = -1;
-                    if (mError.find()) {
-                        try {
-                            trainErrRate = Double.parseDouble(mError.group(1));
-                        } catch (NumberFormatException nfe) {
-                            System.err.println("Error parsing train error rate for method " + method + ", " + label);
-                        }
-                    } else {
-                        System.err.println("Could not extract train error rate for method " + method + ", " + label);
-                        if (debug) {
-                            System.err.println("Raw output:\n" + outputStr);
-                        }
-                        continue;
-                    }
-
-                    Matcher mTime = timePattern.matcher(outputStr);
-                    double trainTime = -1;
-                    if (mTime.find()) {
-                        try {
-                            trainTime = Double.parseDouble(mTime.group(1));
-                        } catch (NumberFormatException nfe) {
-                            System.err.println("Error parsing train time for method " + method + ", " + label);
-                        }
-                    } else {
-                        System.err.println("Could not extract train time for method " + method + ", " + label);
-                        if (debug) {
-                            System.err.println("Raw output:\n" + outputStr);
-                        }
-                        continue;
-                    }
+                WMSketchClassification.MemoryFootprint footprint = createModel(name, dimensionality, entry.getValue(), 0,
+                    learningRateInitial, regularizationFactor, topKFeatures).memoryFootprint();
+                long budgetBytes = budgetBytes(entry.getValue());
+                if (footprint.total() > budgetBytes) {
+                    overBudget = true;
+                    System.err.println((strictBudget ? "Error: " : "Warning: ") + name + " at " + entry.getKey()
+                        + " budget (" + budgetBytes + " bytes) holds " + footprint);
+                }
+            }
+        }
+        if (overBudget && strictBudget) {
+            System.exit(1);
+        }
 
-                    System.out.println("Method: " + method + ", Budget: " + label +
-                                       " => Train error rate: " + trainErrRate +
-                                       ", Train time (ms): " + trainTime);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ExecutorService timedPool = Executors.newFixedThreadPool(timingThreads);
+        try {
+            // Untimed passes so every method's update path is JIT-compiled before measuring
+            List<Future<?>> warmups = new ArrayList<>();
+            for (int w = 0; w < warmup; w++) {
+                for (String name : series) {
+                    int[] config = memoryConfigs.values().iterator().next();
+                    warmups.add(pool.submit(() -> {
+                        WMSketchClassification.TopKFeatures model = createModel(name, dimensionality, config, 0,
+                            learningRateInitial, regularizationFactor, topKFeatures);
+                        WMSketchClassification.train(model, dataset, 0, 1, 0, false);
+                    }));
+                }
+            }
+            for (Future<?> future : warmups) {
+                future.get();
+            }
 
-                    methodErrors.put(label, trainErrRate);
-                    methodRuntimes.put(label, trainTime);
+            // Each seed visits the rows in its own order, so methods without a hash seed still
+            // get independent runs and a real confidence interval
+            List<WMSketchClassification.CsrDataset> shuffledBySeed = new ArrayList<>();
+            for (int seed = 1; seed <= seeds; seed++) {
+                shuffledBySeed.add(dataset.shuffled(seed));
+            }
 
-                } catch (IOException | InterruptedException e) {
-                    e.printStackTrace();
+            List<Future<RunResult>> futures = new ArrayList<>();
+            for (String name : series) {
+                for (Map.Entry<String, int[]> entry : memoryConfigs.entrySet()) {
+                    String label = entry.getKey();
+                    int[] config = entry.getValue();
+                    for (int seed = 1; seed <= seeds; seed++) {
+                        int initial_Parameter = seed;
+                        WMSketchClassification.CsrDataset shuffled = shuffledBySeed.get(seed - 1);
+                        futures.add(timedPool.submit(() -> {
+                            WMSketchClassification.TopKFeatures model = createModel(name, dimensionality, config,
+                                initial_Parameter, learningRateInitial, regularizationFactor, topKFeatures);
+                            WMSketchClassification.TrainResult result =
+                                WMSketchClassification.train(model, shuffled, 0, 1, initial_Parameter, false);
+                            return new RunResult(name, label, initial_Parameter,
+                                (double) result.incorrectPredictions / result.count, result.runtimeMs,
+                                model.memoryFootprint());
+                        }));
+                    }
                 }
             }
-            errorRateMap.put(method, methodErrors);
-            runtimeMap.put(method, methodRuntimes);
+
+            List<RunResult> runs = new ArrayList<>();
+            for (Future<RunResult> future : futures) {
+                runs.add(future.get());
+            }
+            report(runs, series, memoryConfigs, argMap, timingThreads, seeds);
+            System.err.println("Sweep finished in " + (System.currentTimeMillis() - sweepStart) + " ms");
+        } finally {
+            pool.shutdownNow();
+            timedPool.shutdownNow();
         }
+    }
+
+    static long budgetBytes(int[] config) {
+        return (1L << config[0]) * config[1] * 4;
+    }
 
+    static String counterType(String series) {
+        int colon = series.indexOf(':');
+        return colon < 0 ? "float" : series.substring(colon + 1);
+    }
+
+    // Width that spends the float budget on this series' counter type: 2x wider for half, 4x for int8
+    static int log2Width(String series, int[] config) {
+        return config[0] + Integer.numberOfTrailingZeros(4 / WMSketchClassification.CounterArray.bytesPerCounter(counterType(series)));
+    }
+
+    static WMSketchClassification.TopKFeatures createModel(String series, int dimensionality, int[] config, int seed,
+                                                           float learningRateInitial, float regularizationFactor,
+                                                           int topKFeatures) {
+        String method = series.contains(":") ? series.substring(0, series.indexOf(':')) : series;
+        return WMSketchClassification.createModel(method, dimensionality, log2Width(series, config), config[1], seed,
+            learningRateInitial, regularizationFactor, false, false, topKFeatures, "murmur", counterType(series));
+    }
+
+    static void report(List<RunResult> runs, String[] series, Map<String, int[]> memoryConfigs,
+                       Map<String, String> argMap, int timingThreads, int seeds) throws IOException {
         DefaultCategoryDataset errorDataset = new DefaultCategoryDataset();
-        for (String method : methods) {
-            Map<String, Double> values = errorRateMap.get(method);
-            if (values != null) {
-                for (Map.Entry<String, Double> entry : values.entrySet()) {
-                    errorDataset.addValue(entry.getValue(), method, entry.getKey());
+        DefaultCategoryDataset runtimeDataset = new DefaultCategoryDataset();
+        JSONArray summaries = new JSONArray();
+        StringBuilder csv = new StringBuilder(
+            "method,budget,budget_bytes,log2_width,depth,seeds,timing_threads,error_mean,error_ci95,train_time_ms_mean,train_time_ms_ci95,"
+            + "memory_bytes,sketch_bytes,active_set_bytes,overhead_bytes\n");
+
+        for (String method : series) {
+            for (Map.Entry<String, int[]> entry : memoryConfigs.entrySet()) {
+                String label = entry.getKey();
+                List<Double> errors = new ArrayList<>();
+                List<Double> times = new ArrayList<>();
+                // Largest footprint over the seeds (they only differ for models that grow)
+                WMSketchClassification.MemoryFootprint footprint = new WMSketchClassification.MemoryFootprint(0, 0, 0);
+                for (RunResult run : runs) {
+                    if (run.method.equals(method) && run.budget.equals(label)) {
+                        errors.add(run.errorRate);
+                        times.add(run.trainTimeMs);
+                        if (run.footprint.total() > footprint.total()) {
+                            footprint = run.footprint;
+                        }
+                    }
                 }
+                Summary error = new Summary(errors);
+                Summary time = new Summary(times);
+
+                System.out.println("Method: " + method + ", Budget: " + label +
+                                   String.format(" => Train error rate: %.5f +- %.5f, Train time (ms): %.1f +- %.1f, Memory (bytes): %d",
+                                                 error.mean, error.ci95, time.mean, time.ci95, footprint.total()));
+                errorDataset.addValue(error.mean, method, label);
+                runtimeDataset.addValue(time.mean, method, label);
+
+                csv.append(String.format("%s,%s,%d,%d,%d,%d,%d,%.6f,%.6f,%.3f,%.3f,%d,%d,%d,%d%n", method, label,
+                    budgetBytes(entry.getValue()), log2Width(method, entry.getValue()), entry.getValue()[1], errors.size(),
+                    timingThreads, error.mean, error.ci95, time.mean, time.ci95, footprint.total(), footprint.sketchBytes,
+                    footprint.activeSetBytes, footprint.overheadBytes));
+                JSONObject summary = new JSONObject();
+                summary.put("method", method);
+                summary.put("budget", label);
+                summary.put("log2_width", log2Width(method, entry.getValue()));
+                summary.put("counters", counterType(method));
+                summary.put("depth", entry.getValue()[1]);
+                summary.put("budget_bytes", budgetBytes(entry.getValue()));
+                summary.put("memory_bytes", footprint.total());
+                summary.put("sketch_bytes", footprint.sketchBytes);
+                summary.put("active_set_bytes", footprint.activeSetBytes);
+                summary.put("overhead_bytes", footprint.overheadBytes);
+                summary.put("error_mean", error.mean);
+                summary.put("error_ci95", error.ci95);
+                summary.put("train_time_ms_mean", time.mean);
+                summary.put("train_time_ms_ci95", time.ci95);
+                summary.put("error_rates", errors);
+                summary.put("train_times_ms", times);
+                summaries.put(summary);
             }
         }
 
-        DefaultCategoryDataset runtimeDataset = new DefaultCategoryDataset();
-        for (String method : methods) {
-            Map<String, Double> values = runtimeMap.get(method);
-            if (values != null) {
-                for (Map.Entry<String, Double> entry : values.entrySet()) {
-                    runtimeDataset.addValue(entry.getValue(), method, entry.getKey());
-                }
+        if (argMap.containsKey("csv")) {
+            try (Writer out = new FileWriter(argMap.get("csv"))) {
+                out.write(csv.toString());
+            }
+        }
+        if (argMap.containsKey("json")) {
+            JSONObject json = new JSONObject();
+            json.put("timing_threads", timingThreads);
+            json.put("seeds", seeds);
+            json.put("results", summaries);
+            try (Writer out = new FileWriter(argMap.get("json"))) {
+                out.write(json.toString(2));
             }
         }
 
@@ -163,18 +326,18 @@ public class CompareByMemoryBudget {
         CategoryPlot errorPlot = (CategoryPlot) errorChart.getPlot();
         LineAndShapeRenderer errorRenderer =
             (LineAndShapeRenderer) errorPlot.getRenderer();
-        
+
         errorRenderer.setSeriesPaint(0, Color.RED);
         errorRenderer.setSeriesStroke(0, new BasicStroke(3.0f));
         errorRenderer.setSeriesPaint(1, Color.BLUE);
         errorRenderer.setSeriesStroke(1, new BasicStroke(3.0f));
         errorRenderer.setSeriesPaint(2, Color.BLACK);
         errorRenderer.setSeriesStroke(2, new BasicStroke(3.0f));
-        
+
         CategoryPlot runPlot = (CategoryPlot) runtimeChart.getPlot();
         LineAndShapeRenderer runRenderer =
             (LineAndShapeRenderer) runPlot.getRenderer();
-        
+
         runRenderer.setSeriesPaint(0, Color.RED);
         runRenderer.setSeriesStroke(0, new BasicStroke(3.0f));
         runRenderer.setSeriesPaint(1, Color.BLUE);
@@ -182,6 +345,17 @@ public class CompareByMemoryBudget {
         runRenderer.setSeriesPaint(2, Color.BLACK);
         runRenderer.setSeriesStroke(2, new BasicStroke(3.0f));
 
+        if (argMap.containsKey("png")) {
+            File dir = new File(argMap.get("png"));
+            dir.mkdirs();
+            ChartUtils.saveChartAsPNG(new File(dir, "error_vs_budget.png"), errorChart, 800, 600);
+            ChartUtils.saveChartAsPNG(new File(dir, "runtime_vs_budget.png"), runtimeChart, 800, 600);
+            return;
+        }
+        if (GraphicsEnvironment.isHeadless()) {
+            return;
+        }
+
         ChartFrame errorFrame = new ChartFrame("Error Rate by Budget", errorChart);
         errorFrame.pack();
         errorFrame.setVisible(true);
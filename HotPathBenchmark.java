@@ -0,0 +1,325 @@
+import java.io.*;
+import java.util.*;
+
+// Micro-benchmarks for the per-example hot paths, on synthetic data so it runs offline.
+// Every benchmark is run over the cross product of the comma-separated parameter lists:
+//
+//   java -cp json.jar:. HotPathBenchmark --log2_width=10,14 --depth=1,4 --topk=128,1024 --nnz=20,100
+//
+// Other flags: --benchmarks=update,predict,topk,heap,parse  --methods=<comma list>
+//              --rows=20000  --dim=65536  --warmup=5  --iterations=10  --csv=<file>
+public class HotPathBenchmark {
+
+    // Results are folded in here so the JIT cannot drop the measured work
+    static volatile float sink;
+
+    static final String[] ALL_METHODS = {
+        "UncompressedLogisticRegression", "WMSketch", "AWMsketch", "TruncatedModel", "PMI"
+    };
+
+    static class Measurement {
+        String benchmark;
+        String params;
+        double mean;
+        double stddev;
+        String unit;
+        Measurement(String benchmark, String params, double mean, double stddev, String unit) {
+            this.benchmark = benchmark;
+            this.params = params;
+            this.mean = mean;
+            this.stddev = stddev;
+            this.unit = unit;
+        }
+    }
+
+    interface Trial {
+        // Runs one timed iteration and returns how many operations it performed
+        long run() throws Exception;
+    }
+
+    interface Setup {
+        // Runs before every warmup and timed iteration, outside the timed region
+        void run() throws Exception;
+    }
+
+    static int warmup;
+    static int iterations;
+    static List<Measurement> measurements = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> argMap = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                String[] parts = arg.substring(2).split("=", 2);
+                argMap.put(parts[0], parts.length > 1 ? parts[1] : "");
+            }
+        }
+        int[] widths = intList(argMap.getOrDefault("log2_width", "10,14"));
+        int[] depths = intList(argMap.getOrDefault("depth", "1,4"));
+        int[] topks = intList(argMap.getOrDefault("topk", "128,1024"));
+        int[] nnzs = intList(argMap.getOrDefault("nnz", "20,100"));
+        int rows = Integer.parseInt(argMap.getOrDefault("rows", "20000"));
+        int dim = Integer.parseInt(argMap.getOrDefault("dim", "65536"));
+        warmup = Integer.parseInt(argMap.getOrDefault("warmup", "5"));
+        iterations = Integer.parseInt(argMap.getOrDefault("iterations", "10"));
+        Set<String> benchmarks = new LinkedHashSet<>(Arrays.asList(
+            argMap.getOrDefault("benchmarks", "update,predict,topk,heap,parse").split(",")));
+        List<String> methods = Arrays.asList(argMap.getOrDefault("methods", String.join(",", ALL_METHODS)).split(","));
+
+        System.out.printf("%-56s %-40s %14s %13s%n", "Benchmark", "Params", "Score", "Error");
+
+        for (int nnz : nnzs) {
+            WMSketchClassification.CsrDataset data = synthetic(rows, dim, nnz, 42);
+            Set<String> done = new HashSet<>();
+            for (String method : methods) {
+                for (int topk : topks) {
+                    for (int log2Width : widths) {
+                        for (int depth : depths) {
+                            boolean sketched = method.equals("WMSketch") || method.equals("AWMsketch");
+                            String params = sketched
+                                ? String.format("log2_width=%d depth=%d topk=%d nnz=%d", log2Width, depth, topk, nnz)
+                                : String.format("topk=%d nnz=%d", topk, nnz);
+                            // Width and depth only matter to the sketches
+                            if (!done.add(method + params)) {
+                                continue;
+                            }
+                            runModel(benchmarks, method, params, data, dim, log2Width, depth, topk);
+                        }
+                    }
+                }
+            }
+            if (benchmarks.contains("parse")) {
+                runParse(data, nnz);
+            }
+        }
+        if (benchmarks.contains("heap")) {
+            for (int topk : topks) {
+                runHeap(topk, dim);
+            }
+        }
+
+        String csv = argMap.get("csv");
+        if (csv != null) {
+            try (PrintWriter out = new PrintWriter(new FileWriter(csv))) {
+                out.println("benchmark,params,mean,stddev,unit");
+                for (Measurement m : measurements) {
+                    out.printf("%s,%s,%.3f,%.3f,%s%n", m.benchmark, m.params, m.mean, m.stddev, m.unit);
+                }
+            }
+        }
+    }
+
+    static void runModel(Set<String> benchmarks, String method, String params,
+                         WMSketchClassification.CsrDataset data, int dim, int log2Width, int depth, int topk) throws Exception {
+        WMSketchClassification.TopKFeatures model;
+        if (benchmarks.contains("update")) {
+            // Each iteration trains a fresh model for one pass, so later iterations do not time a converged one
+            WMSketchClassification.TopKFeatures[] fresh = new WMSketchClassification.TopKFeatures[1];
+            measure(method + ".Internal_weiight_update", params, "ns/op",
+                    () -> fresh[0] = newModel(method, dim, log2Width, depth, topk), () -> {
+                WMSketchClassification.TopKFeatures trained = fresh[0];
+                int wrong = 0;
+                for (int row = 0; row < data.numRows; row++) {
+                    boolean label = data.label(row);
+                    if (trained.Internal_weiight_update(data.indices, data.values, data.rowStart(row), data.rowEnd(row), label) != label) {
+                        wrong++;
+                    }
+                }
+                sink += wrong;
+                return data.numRows;
+            }, 0);
+            model = fresh[0];
+        } else {
+            model = newModel(method, dim, log2Width, depth, topk);
+            // Predict and getTopFeatures on an untrained model would measure an empty active set
+            for (int row = 0; row < data.numRows; row++) {
+                model.Internal_weiight_update(data.indices, data.values, data.rowStart(row), data.rowEnd(row), data.label(row));
+            }
+        }
+        if (benchmarks.contains("predict")) {
+            measure(method + ".Value_Prediction", params, "ns/op", () -> {
+                int positive = 0;
+                for (int row = 0; row < data.numRows; row++) {
+                    if (model.Value_Prediction(data.indices, data.values, data.rowStart(row), data.rowEnd(row))) {
+                        positive++;
+                    }
+                }
+                sink += positive;
+                return data.numRows;
+            });
+        }
+        if (benchmarks.contains("topk")) {
+            measure(method + ".getTopFeatures", params, "ns/op", () -> {
+                int calls = 20;
+                for (int i = 0; i < calls; i++) {
+                    sink += model.getTopFeatures().size();
+                }
+                return calls;
+            });
+        }
+    }
+
+    static void runHeap(int topk, int dim) throws Exception {
+        int ops = 1 << 20;
+        int[] keys = new int[ops];
+        float[] values = new float[ops];
+        Random rand = new Random(7);
+        for (int i = 0; i < ops; i++) {
+            keys[i] = skewed(rand, dim);
+            values[i] = (float) rand.nextGaussian();
+        }
+        String params = "topk=" + topk;
+        measure("Heap.insertOrChange", params, "ns/op", () -> {
+            WMSketchClassification.Heap heap = new WMSketchClassification.Heap(topk);
+            for (int i = 0; i < ops; i++) {
+                heap.insertOrChange(keys[i], values[i]);
+            }
+            sink += heap.size();
+            return ops;
+        });
+        WMSketchClassification.Heap full = new WMSketchClassification.Heap(topk);
+        for (int i = 0; i < ops; i++) {
+            full.insertOrChange(keys[i], values[i]);
+        }
+        measure("Heap.indexOf", params, "ns/op", () -> {
+            int hits = 0;
+            for (int i = 0; i < ops; i++) {
+                if (full.indexOf(keys[i]) >= 0) {
+                    hits++;
+                }
+            }
+            sink += hits;
+            return ops;
+        });
+        measure("Heap.insert+pollMin", params, "ns/op", () -> {
+            WMSketchClassification.Heap heap = full.copy();
+            for (int i = 0; i < ops; i++) {
+                if (heap.size() == topk) {
+                    sink += heap.pollMin().get().featureValue;
+                }
+                heap.insert(keys[i], values[i]);
+            }
+            return ops;
+        });
+    }
+
+    static void runParse(WMSketchClassification.CsrDataset data, int nnz) throws Exception {
+        File file = File.createTempFile("hotpath-bench", ".libsvm");
+        file.deleteOnExit();
+        try (Writer out = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+            for (int row = 0; row < data.numRows; row++) {
+                out.write(data.label(row) ? "1" : "-1");
+                for (int i = data.rowStart(row); i < data.rowEnd(row); i++) {
+                    out.write(" " + data.indices[i] + ":" + data.values[i]);
+                }
+                out.write('\n');
+            }
+        }
+        String params = "nnz=" + nnz;
+        double megabytes = file.length() / 1e6;
+        measure("readLibSVMCsr", params, "MB/s", () -> {
+            sink += WMSketchClassification.readLibSVMCsr(file.getPath()).nnz();
+            return 1;
+        }, megabytes);
+        int threads = Runtime.getRuntime().availableProcessors();
+        measure("readLibSVMParallel", params + " threads=" + threads, "MB/s", () -> {
+            sink += WMSketchClassification.readLibSVMParallel(file.getPath(), threads).nnz();
+            return 1;
+        }, megabytes);
+        file.delete();
+    }
+
+    static void measure(String benchmark, String params, String unit, Trial trial) throws Exception {
+        measure(benchmark, params, unit, trial, 0);
+    }
+
+    static void measure(String benchmark, String params, String unit, Trial trial, double megabytes) throws Exception {
+        measure(benchmark, params, unit, () -> { }, trial, megabytes);
+    }
+
+    // ns/op per iteration, or throughput when unit is MB/s (megabytes handled per run)
+    static void measure(String benchmark, String params, String unit, Setup setup, Trial trial, double megabytes)
+            throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            setup.run();
+            trial.run();
+        }
+        double[] scores = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            setup.run();
+            long start = System.nanoTime();
+            long ops = trial.run();
+            long elapsed = Math.max(1, System.nanoTime() - start);
+            scores[i] = unit.equals("MB/s") ? megabytes * ops / (elapsed / 1e9) : (double) elapsed / ops;
+        }
+        double mean = 0;
+        for (double score : scores) {
+            mean += score;
+        }
+        mean /= scores.length;
+        double variance = 0;
+        for (double score : scores) {
+            variance += (score - mean) * (score - mean);
+        }
+        double stddev = scores.length > 1 ? Math.sqrt(variance / (scores.length - 1)) : 0;
+        measurements.add(new Measurement(benchmark, params, mean, stddev, unit));
+        System.out.printf("%-56s %-40s %12.1f %-5s +- %9.1f%n", benchmark, params, mean, unit, stddev);
+    }
+
+    static WMSketchClassification.TopKFeatures newModel(String method, int dim, int log2Width, int depth, int topk) {
+        float lr = 0.1f;
+        float l2 = 1e-6f;
+        switch (method) {
+            case "UncompressedLogisticRegression":
+                return new WMSketchClassification.UncompressedLogisticRegression(dim, topk, lr, l2, false);
+            case "WMSketch":
+                return new WMSketchClassification.WMSketch(dim, log2Width, depth, 1, lr, l2, false, topk);
+            case "AWMsketch":
+                return new WMSketchClassification.AWMsketch(dim, topk, log2Width, depth, 1, lr, l2);
+            case "TruncatedModel":
+                return new WMSketchClassification.TruncatedModel(topk, lr, l2);
+            case "PMI":
+                return new WMSketchClassification.PMI(dim, topk, lr, l2);
+            default:
+                throw new IllegalArgumentException("Unknown method " + method);
+        }
+    }
+
+    // Feature ids are skewed towards small indices, labels come from a hidden sparse model
+    static WMSketchClassification.CsrDataset synthetic(int rows, int dim, int nnz, long seed) {
+        Random rand = new Random(seed);
+        float[] hidden = new float[dim];
+        for (int i = 0; i < 64; i++) {
+            hidden[skewed(rand, dim)] = (float) rand.nextGaussian() * 4;
+        }
+        WMSketchClassification.CsrDataset data = new WMSketchClassification.CsrDataset(rows, rows * nnz);
+        for (int row = 0; row < rows; row++) {
+            int[] features = new int[nnz];
+            float margin = 0;
+            for (int i = 0; i < nnz; i++) {
+                features[i] = skewed(rand, dim);
+                margin += hidden[features[i]];
+            }
+            data.addRow(margin + (float) rand.nextGaussian() >= 0 ? 1 : -1);
+            for (int feature : features) {
+                data.addFeature(feature, 1.0f);
+            }
+        }
+        data.dimensionality = dim;
+        return data;
+    }
+
+    static int skewed(Random rand, int dim) {
+        double u = rand.nextDouble();
+        return (int) (dim * u * u * u);
+    }
+
+    static int[] intList(String text) {
+        String[] parts = text.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,157 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Loopback load generator for ScoringServer. Each connection replays LIBSVM lines from --data in
+// batches of --batch lines and waits for all the answers before it sends the next batch.
+//
+//   java -cp json.jar:. ScoringLoadGenerator --data=test.libsvm --connections=4 --batch=1 --duration=10
+//
+// By default the load is closed-loop: each connection sends as fast as it gets answers.
+// --rate=<requests/s> paces the batches across all connections, with each connection's schedule
+// offset by a share of the interval so the sends are spread out rather than bunched. Latency is
+// then measured from each batch's scheduled send time, so time spent waiting on a stalled server
+// still counts.
+//
+// Other flags: --host=127.0.0.1  --port=9099  --rows=100000 (lines read from --data)  --warmup=2 (s)
+public class ScoringLoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> argMap = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                String[] parts = arg.substring(2).split("=", 2);
+                argMap.put(parts[0], parts.length > 1 ? parts[1] : "");
+            }
+        }
+        if (!argMap.containsKey("data")) {
+            System.err.println("Error: --data must be specified (LIBSVM lines to send)");
+            System.exit(1);
+        }
+        String host = argMap.getOrDefault("host", "127.0.0.1");
+        int port = Integer.parseInt(argMap.getOrDefault("port", "9099"));
+        int rows = Integer.parseInt(argMap.getOrDefault("rows", "100000"));
+        int connections = Integer.parseInt(argMap.getOrDefault("connections", "4"));
+        int batch = Math.max(1, Integer.parseInt(argMap.getOrDefault("batch", "1")));
+        double duration = Double.parseDouble(argMap.getOrDefault("duration", "10"));
+        double warmup = Double.parseDouble(argMap.getOrDefault("warmup", "2"));
+        double rate = Double.parseDouble(argMap.getOrDefault("rate", "0"));
+
+        List<byte[]> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(argMap.get("data")))) {
+            String line;
+            while (lines.size() < rows && (line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    lines.add((line + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+        if (lines.isEmpty()) {
+            System.err.println("Error: no lines in " + argMap.get("data"));
+            System.exit(1);
+        }
+        System.err.println("Replaying " + lines.size() + " lines over " + connections + " connection(s), batch " + batch
+                           + (rate > 0 ? ", " + rate + " requests/s" : ", closed loop"));
+
+        ScoringServer.LatencyHistogram histogram = new ScoringServer.LatencyHistogram();
+        AtomicLong requests = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        long start = System.nanoTime();
+        long measureFrom = start + (long) (warmup * 1e9);
+        long end = measureFrom + (long) (duration * 1e9);
+        long interval = rate > 0 ? (long) (1e9 * batch * connections / rate) : 0;
+        // Thread.sleep can overshoot by a scheduler tick, so it stops this far short of the send time
+        // and the rest is a yield loop (a pure spin would starve a server sharing the cores)
+        long spinNanos = 50_000;
+
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        for (int c = 0; c < connections; c++) {
+            final int offset = (int) ((long) c * lines.size() / connections);
+            final long phase = start + interval * c / connections;
+            Thread thread = new Thread(() -> {
+                try (Socket socket = new Socket(host, port)) {
+                    socket.setTcpNoDelay(true);
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+                    InputStream in = new BufferedInputStream(socket.getInputStream(), 1 << 16);
+                    int next = offset;
+                    for (long sent = 0; ; sent++) {
+                        long scheduled = interval > 0 ? phase + sent * interval : System.nanoTime();
+                        long now = System.nanoTime();
+                        if (scheduled >= end || now >= end) {
+                            break;
+                        }
+                        if (scheduled - now > spinNanos) {
+                            long wait = scheduled - now - spinNanos;
+                            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                        }
+                        while (System.nanoTime() < scheduled) {
+                            Thread.yield();
+                        }
+                        long sentAt = interval > 0 ? scheduled : System.nanoTime();
+                        for (int i = 0; i < batch; i++) {
+                            out.write(lines.get(next));
+                            next = (next + 1) % lines.size();
+                        }
+                        out.flush();
+                        int failed = readAnswers(in, batch);
+                        long answeredAt = System.nanoTime();
+                        if (sentAt >= measureFrom) {
+                            histogram.record(answeredAt - sentAt, batch);
+                            requests.addAndGet(batch);
+                            errors.addAndGet(failed);
+                        }
+                    }
+                } catch (Exception e) {
+                    failures.add(e);
+                }
+            }, "load-" + c);
+            threads.add(thread);
+            thread.start();
+        }
+        // Server-side percentiles should also cover only the measured window
+        Thread.sleep(Math.max(0, (measureFrom - System.nanoTime()) / 1000000));
+        command(host, port, "RESET");
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!failures.isEmpty()) {
+            System.err.println("Error: " + failures.get(0));
+            System.exit(1);
+        }
+
+        System.out.printf(Locale.ROOT, "Requests: %d (%d errors)%n", requests.get(), errors.get());
+        System.out.printf(Locale.ROOT, "Throughput (requests/s): %.0f%n", requests.get() / duration);
+        System.out.println("Client round trip: " + histogram.summary());
+        System.out.println("Server: " + command(host, port, "STATS"));
+    }
+
+    // Reads one answer line per request; returns how many were errors
+    static int readAnswers(InputStream in, int count) throws IOException {
+        int failed = 0;
+        boolean lineStart = true;
+        for (int answered = 0; answered < count; ) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Server closed the connection");
+            }
+            if (lineStart && b == 'E') {
+                failed++;
+            }
+            lineStart = b == '\n';
+            if (lineStart) {
+                answered++;
+            }
+        }
+        return failed;
+    }
+
+    static String command(String host, int port, String command) throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            socket.getOutputStream().write((command + "\n").getBytes(StandardCharsets.US_ASCII));
+            return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII)).readLine();
+        }
+    }
+}
@@ -0,0 +1,431 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+// Serves predictions from a model saved with --save_model over a local TCP socket.
+//
+//   java -cp json.jar:. ScoringServer --model=model.bin --port=9099 --threads=2
+//
+// Protocol: each request is one LIBSVM line, "[label] index:value ...". The label is optional
+// and ignored. The answer is one line, "1" or "-1", or "ERR <message>" for a line that does not
+// parse. Lines written together form a batch: they are scored in one pass and answered in order
+// with a single write. "STATS" is answered with the server-side latency percentiles, measured
+// from the read that completed a request to the write that sent its answer. "RESET" clears them.
+//
+// Other flags: --host=127.0.0.1  --stats_every=<seconds> (print STATS to stderr periodically)
+//
+// WMSketchClassification --stream --serve_port=<port> runs the same server in the training
+// process, scoring from the snapshots that the trainer publishes.
+public class ScoringServer {
+
+    private static final int MAX_LINE = 16 << 20;
+    private static final byte[] POSITIVE = "1\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NEGATIVE = "-1\n".getBytes(StandardCharsets.US_ASCII);
+
+    // Log-linear latency buckets: 32 per power of two, so any recorded value is within about 3%.
+    // Counts are atomic so STATS can read every event loop's histogram while it records.
+    public static class LatencyHistogram {
+        private static final int SUB_BITS = 5;
+        private static final int SUB = 1 << SUB_BITS;
+        private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * SUB);
+
+        public void record(long nanos) {
+            record(nanos, 1);
+        }
+
+        public void record(long nanos, long count) {
+            counts.addAndGet(index(Math.max(0, nanos)), count);
+        }
+
+        public void add(LatencyHistogram other) {
+            for (int i = 0; i < counts.length(); i++) {
+                long n = other.counts.get(i);
+                if (n != 0) {
+                    counts.addAndGet(i, n);
+                }
+            }
+        }
+
+        public void reset() {
+            for (int i = 0; i < counts.length(); i++) {
+                counts.set(i, 0);
+            }
+        }
+
+        public long count() {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                total += counts.get(i);
+            }
+            return total;
+        }
+
+        // Upper edge of the bucket holding the q-quantile, in nanoseconds
+        public long percentile(double q) {
+            long total = count();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return max();
+        }
+
+        public long max() {
+            for (int i = counts.length() - 1; i >= 0; i--) {
+                if (counts.get(i) != 0) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+
+        public String summary() {
+            return String.format(Locale.ROOT, "count=%d p50_us=%.1f p99_us=%.1f p999_us=%.1f max_us=%.1f",
+                                 count(), percentile(0.5) / 1e3, percentile(0.99) / 1e3,
+                                 percentile(0.999) / 1e3, max() / 1e3);
+        }
+
+        // Values below 64 get their own bucket; above that, the top 6 significant bits pick one
+        static int index(long nanos) {
+            if (nanos < 2 * SUB) {
+                return (int) nanos;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BITS;
+            return SUB * shift + (int) (nanos >>> shift);
+        }
+
+        static long upperBound(int index) {
+            if (index < 2 * SUB) {
+                return index;
+            }
+            int shift = index / SUB - 1;
+            long mantissa = index % SUB + SUB;
+            return ((mantissa + 1) << shift) - 1;
+        }
+    }
+
+    static class Connection {
+        ByteBuffer in = ByteBuffer.allocate(1 << 16);
+        ByteBuffer out = ByteBuffer.allocate(1 << 16);
+        // Requests answered in out but not yet fully written, and when the first was read
+        long unanswered;
+        long readAt;
+    }
+
+    // One selector thread. A loaded model reuses per-model scratch arrays when it scores, so each
+    // loop gets its own copy; published snapshots are safe to share and are read once per batch.
+    class EventLoop implements Runnable {
+        final Selector selector;
+        final Supplier<WMSketchClassification.ScoringSnapshot> scorer;
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        int[] indices = new int[256];
+        float[] values = new float[256];
+
+        EventLoop(Supplier<WMSketchClassification.ScoringSnapshot> scorer) throws IOException {
+            this.selector = Selector.open();
+            this.scorer = scorer;
+        }
+
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = pending.poll()) != null) {
+                        channel.configureBlocking(false);
+                        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        channel.register(selector, SelectionKey.OP_READ, new Connection());
+                    }
+                } catch (IOException e) {
+                    System.err.println("Event loop error: " + e.getMessage());
+                    continue;
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            flush(key);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(key);
+                        }
+                    } catch (IOException e) {
+                        close(key);
+                    }
+                }
+            }
+        }
+
+        private void read(SelectionKey key) throws IOException {
+            Connection connection = (Connection) key.attachment();
+            ByteBuffer in = connection.in;
+            if (((SocketChannel) key.channel()).read(in) < 0) {
+                close(key);
+                return;
+            }
+            long readAt = System.nanoTime();
+            byte[] buf = in.array();
+            int start = 0;
+            int limit = in.position();
+            int requests = 0;
+            WMSketchClassification.ScoringSnapshot model = scorer.get();
+            for (int p = 0; p < limit; p++) {
+                if (buf[p] == '\n') {
+                    requests += handleLine(buf, start, p, connection, model);
+                    start = p + 1;
+                }
+            }
+            in.limit(limit).position(start);
+            in.compact();
+            if (!in.hasRemaining()) {
+                if (in.capacity() >= MAX_LINE) {
+                    close(key);
+                    return;
+                }
+                ByteBuffer grown = ByteBuffer.allocate(in.capacity() * 2);
+                in.flip();
+                connection.in = grown.put(in);
+            }
+            if (requests > 0 && connection.unanswered == 0) {
+                connection.readAt = readAt;
+            }
+            connection.unanswered += requests;
+            if (connection.out.position() > 0) {
+                flush(key);
+            }
+        }
+
+        // Writes what it can; while answers are backed up, stop reading from this client
+        private void flush(SelectionKey key) throws IOException {
+            Connection connection = (Connection) key.attachment();
+            ByteBuffer out = connection.out;
+            out.flip();
+            ((SocketChannel) key.channel()).write(out);
+            boolean drained = !out.hasRemaining();
+            out.compact();
+            if (drained) {
+                if (connection.unanswered > 0) {
+                    histogram.record(System.nanoTime() - connection.readAt, connection.unanswered);
+                    connection.unanswered = 0;
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } else {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+
+        // Answers one line in buf[start, end); returns how many scoring requests it held
+        private int handleLine(byte[] buf, int start, int end, Connection connection,
+                               WMSketchClassification.ScoringSnapshot model) {
+            if (end > start && buf[end - 1] == '\r') {
+                end--;
+            }
+            int p = WMSketchClassification.LibSVMParser.skipSpace(buf, start, end);
+            if (p == end) {
+                return 0;
+            }
+            int tokenEnd = WMSketchClassification.LibSVMParser.tokenEnd(buf, p, end);
+            if (matches(buf, p, tokenEnd, "STATS")) {
+                respond(connection, (stats().summary() + "\n").getBytes(StandardCharsets.US_ASCII));
+                return 0;
+            }
+            if (matches(buf, p, tokenEnd, "RESET")) {
+                reset();
+                respond(connection, "OK\n".getBytes(StandardCharsets.US_ASCII));
+                return 0;
+            }
+            try {
+                int nnz = 0;
+                boolean label = true;
+                while (p < end) {
+                    tokenEnd = WMSketchClassification.LibSVMParser.tokenEnd(buf, p, end);
+                    int colon = p;
+                    while (colon < tokenEnd && buf[colon] != ':') {
+                        colon++;
+                    }
+                    if (colon == tokenEnd) {
+                        if (!label) {
+                            throw new NumberFormatException("Missing ':' in feature \""
+                                + new String(buf, p, tokenEnd - p, StandardCharsets.ISO_8859_1) + "\"");
+                        }
+                    } else {
+                        if (nnz == indices.length) {
+                            indices = Arrays.copyOf(indices, nnz * 2);
+                            values = Arrays.copyOf(values, nnz * 2);
+                        }
+                        indices[nnz] = WMSketchClassification.LibSVMParser.parseInt(buf, p, colon);
+                        if (indices[nnz] < 0) {
+                            throw new NumberFormatException("Negative feature index " + indices[nnz]);
+                        }
+                        values[nnz] = WMSketchClassification.LibSVMParser.parseFloat(buf, colon + 1, tokenEnd);
+                        nnz++;
+                    }
+                    label = false;
+                    p = WMSketchClassification.LibSVMParser.skipSpace(buf, tokenEnd, end);
+                }
+                respond(connection, model.Value_Prediction(indices, values, 0, nnz) ? POSITIVE : NEGATIVE);
+            } catch (RuntimeException e) {
+                respond(connection, ("ERR " + e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            return 1;
+        }
+
+        private void respond(Connection connection, byte[] answer) {
+            if (connection.out.remaining() < answer.length) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(connection.out.capacity() * 2,
+                                                                connection.out.position() + answer.length));
+                connection.out.flip();
+                connection.out = grown.put(connection.out);
+            }
+            connection.out.put(answer);
+        }
+
+        private void close(SelectionKey key) {
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+    }
+
+    private final List<EventLoop> loops = new ArrayList<>();
+    private final String description;
+
+    public ScoringServer(String modelPath, int threads) throws IOException {
+        String method = null;
+        for (int i = 0; i < threads; i++) {
+            // The mapped sketch pages are shared by every copy
+            WMSketchClassification.TopKFeatures model = WMSketchClassification.ModelSnapshot.load(Paths.get(modelPath));
+            WMSketchClassification.ScoringSnapshot confined = model::Value_Prediction;
+            loops.add(new EventLoop(() -> confined));
+            method = model.getClass().getSimpleName();
+        }
+        this.description = method;
+    }
+
+    public ScoringServer(WMSketchClassification.SnapshotPublisher publisher, int threads) throws IOException {
+        for (int i = 0; i < threads; i++) {
+            loops.add(new EventLoop(publisher::current));
+        }
+        this.description = "published snapshots";
+    }
+
+    public LatencyHistogram stats() {
+        LatencyHistogram total = new LatencyHistogram();
+        for (EventLoop loop : loops) {
+            total.add(loop.histogram);
+        }
+        return total;
+    }
+
+    public void reset() {
+        for (EventLoop loop : loops) {
+            loop.histogram.reset();
+        }
+    }
+
+    // Accepts on the calling thread and hands connections to the event loops round robin
+    public void serve(String host, int port) throws IOException {
+        for (int i = 0; i < loops.size(); i++) {
+            Thread thread = new Thread(loops.get(i), "scoring-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(host, port), 1024);
+            System.err.println("Scoring " + description + " on " + host + ":" + port
+                               + " with " + loops.size() + " event loop(s)");
+            for (int next = 0; ; next = (next + 1) % loops.size()) {
+                loops.get(next).register(server.accept());
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> argMap = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                String[] parts = arg.substring(2).split("=", 2);
+                argMap.put(parts[0], parts.length > 1 ? parts[1] : "");
+            }
+        }
+        if (!argMap.containsKey("model")) {
+            System.err.println("Error: --model must be specified (a file written with --save_model)");
+            System.exit(1);
+        }
+        String host = argMap.getOrDefault("host", "127.0.0.1");
+        int port = Integer.parseInt(argMap.getOrDefault("port", "9099"));
+        int threads = Integer.parseInt(argMap.getOrDefault("threads", "1"));
+        int statsEvery = Integer.parseInt(argMap.getOrDefault("stats_every", "0"));
+
+        ScoringServer server = null;
+        try {
+            long start = System.nanoTime();
+            server = new ScoringServer(argMap.get("model"), Math.max(1, threads));
+            System.err.println("Loaded " + argMap.get("model") + " in " + (System.nanoTime() - start) / 1000 + "us");
+        } catch (IOException e) {
+            System.err.println("Error loading model: " + e.getMessage());
+            System.exit(1);
+        }
+        final ScoringServer running = server;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.println("Final: " + running.stats().summary())));
+        if (statsEvery > 0) {
+            Thread reporter = new Thread(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(statsEvery * 1000L);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    System.err.println(running.stats().summary());
+                }
+            }, "scoring-stats");
+            reporter.setDaemon(true);
+            reporter.start();
+        }
+        try {
+            server.serve(host, port);
+        } catch (IOException e) {
+            System.err.println("Error serving on " + host + ":" + port + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static boolean matches(byte[] buf, int start, int end, String word) {
+        if (end - start != word.length()) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            if (buf[start + i] != word.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,6 +1,13 @@
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.regex.*;
+import java.util.zip.GZIPInputStream;
 import org.json.JSONObject;
 
 public class WMSketchClassification {
@@ -50,59 +57,653 @@ public class WMSketchClassification {
         public int dimensionality = 0;
     }
 
+    // Columnar (CSR) dataset: row r spans indices/values[rowOffsets[r], rowOffsets[r + 1])
+    public static class CsrDataset {
+        public int[] indices;
+        public float[] values;
+        public int[] rowOffsets;
+        public byte[] labels;
+        public int numRows = 0;
+        public int dimensionality = 0;
+
+        public CsrDataset() {
+            this(1024, 16 * 1024);
+        }
+
+        public CsrDataset(int rowCapacity, int nnzCapacity) {
+            this.indices = new int[Math.max(1, nnzCapacity)];
+            this.values = new float[Math.max(1, nnzCapacity)];
+            this.rowOffsets = new int[Math.max(1, rowCapacity) + 1];
+            this.labels = new byte[Math.max(1, rowCapacity)];
+        }
+
+        public int rowStart(int row) {
+            return rowOffsets[row];
+        }
+
+        public int rowEnd(int row) {
+            return rowOffsets[row + 1];
+        }
+
+        public boolean label(int row) {
+            return labels[row] == 1;
+        }
+
+        public int nnz() {
+            return rowOffsets[numRows];
+        }
+
+        public void addRow(int Given_Sign) {
+            if (numRows == labels.length) {
+                int grown = labels.length * 2;
+                labels = Arrays.copyOf(labels, grown);
+                rowOffsets = Arrays.copyOf(rowOffsets, grown + 1);
+            }
+            labels[numRows] = (byte) Given_Sign;
+            rowOffsets[numRows + 1] = rowOffsets[numRows];
+            numRows++;
+        }
+
+        public void addFeature(int featureIndex, float featureValue) {
+            int pos = rowOffsets[numRows];
+            if (pos == indices.length) {
+                int grown = indices.length * 2;
+                indices = Arrays.copyOf(indices, grown);
+                values = Arrays.copyOf(values, grown);
+            }
+            indices[pos] = featureIndex;
+            values[pos] = featureValue;
+            rowOffsets[numRows] = pos + 1;
+            if (featureIndex >= dimensionality) {
+                dimensionality = featureIndex + 1;
+            }
+        }
+
+        // Drops the rows but keeps the arrays, so a streaming reader can reuse them
+        public void clear() {
+            numRows = 0;
+        }
+
+        // Release the unused growth headroom once loading is finished
+        public void trim() {
+            int nnz = nnz();
+            indices = Arrays.copyOf(indices, nnz);
+            values = Arrays.copyOf(values, nnz);
+            rowOffsets = Arrays.copyOf(rowOffsets, numRows + 1);
+            labels = Arrays.copyOf(labels, numRows);
+        }
+
+        // Appends the parts in order; dimensionality is the max across parts
+        public static CsrDataset concat(List<CsrDataset> parts) {
+            int rows = 0;
+            int nnz = 0;
+            for (CsrDataset part : parts) {
+                rows += part.numRows;
+                nnz += part.nnz();
+            }
+            CsrDataset merged = new CsrDataset(rows, nnz);
+            int rowBase = 0;
+            int nnzBase = 0;
+            for (CsrDataset part : parts) {
+                int partNnz = part.nnz();
+                System.arraycopy(part.indices, 0, merged.indices, nnzBase, partNnz);
+                System.arraycopy(part.values, 0, merged.values, nnzBase, partNnz);
+                System.arraycopy(part.labels, 0, merged.labels, rowBase, part.numRows);
+                for (int row = 1; row <= part.numRows; row++) {
+                    merged.rowOffsets[rowBase + row] = nnzBase + part.rowOffsets[row];
+                }
+                rowBase += part.numRows;
+                nnzBase += partNnz;
+                merged.dimensionality = Math.max(merged.dimensionality, part.dimensionality);
+            }
+            merged.numRows = rows;
+            return merged;
+        }
+
+        // A copy with the rows in a random order fixed by seed
+        public CsrDataset shuffled(long seed) {
+            int[] order = new int[numRows];
+            for (int row = 0; row < numRows; row++) {
+                order[row] = row;
+            }
+            Random rand = new Random(seed);
+            for (int row = numRows - 1; row > 0; row--) {
+                int other = rand.nextInt(row + 1);
+                int tmp = order[row];
+                order[row] = order[other];
+                order[other] = tmp;
+            }
+            CsrDataset copy = new CsrDataset(numRows, nnz());
+            for (int row = 0; row < numRows; row++) {
+                int from = order[row];
+                int length = rowEnd(from) - rowStart(from);
+                System.arraycopy(indices, rowStart(from), copy.indices, copy.rowOffsets[row], length);
+                System.arraycopy(values, rowStart(from), copy.values, copy.rowOffsets[row], length);
+                copy.labels[row] = labels[from];
+                copy.rowOffsets[row + 1] = copy.rowOffsets[row] + length;
+            }
+            copy.numRows = numRows;
+            copy.dimensionality = dimensionality;
+            return copy;
+        }
+
+        public static CsrDataset singleRow(List<Feature> featureList) {
+            CsrDataset row = new CsrDataset(1, featureList.size());
+            row.addRow(1);
+            for (Feature f : featureList) {
+                row.addFeature(f.featureIndex, f.featureValue);
+            }
+            return row;
+        }
+
+        public static CsrDataset fromSparseDataset(SparseDataset dataset) {
+            int nnz = 0;
+            for (SparseExample example : dataset.examples) {
+                nnz += example.featureList.size();
+            }
+            CsrDataset csr = new CsrDataset(dataset.examples.size(), nnz);
+            for (SparseExample example : dataset.examples) {
+                csr.addRow(example.Given_Sign);
+                for (Feature f : example.featureList) {
+                    csr.addFeature(f.featureIndex, f.featureValue);
+                }
+            }
+            csr.dimensionality = Math.max(csr.dimensionality, dataset.dimensionality);
+            return csr;
+        }
+
+        public SparseDataset toSparseDataset() {
+            SparseDataset dataset = new SparseDataset();
+            for (int row = 0; row < numRows; row++) {
+                List<Feature> featureList = new ArrayList<>(rowEnd(row) - rowStart(row));
+                for (int i = rowStart(row); i < rowEnd(row); i++) {
+                    featureList.add(new Feature(indices[i], values[i]));
+                }
+                dataset.examples.add(new SparseExample(labels[row], featureList));
+            }
+            dataset.dimensionality = dimensionality;
+            return dataset;
+        }
+    }
+
     public static class Helper_Function {
+        // EXACT: Math.exp in double.
+        // TABLE: linear interpolation over [-16, 16], clamped outside it; max abs error < 1e-6.
+        // RATIONAL: [7/6] Pade approximant of tanh(x/2); max abs error < 5e-5.
+        public enum SigmoidMode { EXACT, TABLE, RATIONAL }
+
+        // Chosen once before training; a plain static so the hot path reads no volatile
+        private static SigmoidMode sigmoidMode = SigmoidMode.EXACT;
+
+        private static final float TABLE_RANGE = 16.0f;
+        private static final int TABLE_STEPS = 4096;
+        private static final float TABLE_SCALE = TABLE_STEPS / (2 * TABLE_RANGE);
+        private static final float[] SIGMOID_TABLE = new float[TABLE_STEPS + 2];
+        static {
+            for (int i = 0; i < SIGMOID_TABLE.length; i++) {
+                double x = -TABLE_RANGE + (double) i / TABLE_SCALE;
+                SIGMOID_TABLE[i] = (float) (1.0 / (1.0 + Math.exp(-x)));
+            }
+        }
+
+        public static void setSigmoidMode(SigmoidMode mode) {
+            sigmoidMode = mode;
+        }
+
+        public static SigmoidMode sigmoidMode() {
+            return sigmoidMode;
+        }
+
         public static float sigmoid(float x) {
-            return (float)(1.0 / (1.0 + Math.exp(-x)));
+            switch (sigmoidMode) {
+                case TABLE:
+                    return sigmoidTable(x);
+                case RATIONAL:
+                    return sigmoidRational(x);
+                default:
+                    return (float)(1.0 / (1.0 + Math.exp(-x)));
+            }
+        }
+
+        public static float sigmoidTable(float x) {
+            if (!(x > -TABLE_RANGE)) {
+                // Also catches NaN
+                return x != x ? x : SIGMOID_TABLE[0];
+            }
+            if (x >= TABLE_RANGE) {
+                return SIGMOID_TABLE[TABLE_STEPS];
+            }
+            float position = (x + TABLE_RANGE) * TABLE_SCALE;
+            int i = (int) position;
+            float fraction = position - i;
+            return SIGMOID_TABLE[i] + fraction * (SIGMOID_TABLE[i + 1] - SIGMOID_TABLE[i]);
+        }
+
+        public static float sigmoidRational(float x) {
+            // tanh(10) is 1 in float; clamping first also keeps y2 cubed from overflowing to NaN
+            float y = Math.max(-10f, Math.min(10f, 0.5f * x));
+            float y2 = y * y;
+            float tanh = y * (135135f + y2 * (17325f + y2 * (378f + y2)))
+                           / (135135f + y2 * (62370f + y2 * (3150f + y2 * 28f)));
+            // The approximant overshoots past |y| ~ 5; tanh is within float epsilon of +-1 there
+            if (tanh > 1f) tanh = 1f;
+            if (tanh < -1f) tanh = -1f;
+            return 0.5f + 0.5f * tanh;
         }
+
         public static float logisticGrad(float x) {
             return -(1 - sigmoid(x));
         }
+        // murmur3 fmix32 finalizer
+        public static int mix(int h) {
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            h ^= h >>> 16;
+            return h;
+        }
+    }
+
+    // Bytes held by a model, split into its weight/counter storage, its top-k active set, and
+    // everything else (object and array headers, hash seeds, scratch buffers). Sizes assume a
+    // 64-bit JVM with compressed oops: 12-byte object headers and 16-byte array headers.
+    public static class MemoryFootprint {
+        public static final long OBJECT_HEADER = 12;
+        public static final long ARRAY_HEADER = 16;
+
+        public long sketchBytes;
+        public long activeSetBytes;
+        public long overheadBytes;
+
+        public MemoryFootprint(long sketchBytes, long activeSetBytes, long overheadBytes) {
+            this.sketchBytes = sketchBytes;
+            this.activeSetBytes = activeSetBytes;
+            this.overheadBytes = overheadBytes;
+        }
+
+        public long total() {
+            return sketchBytes + activeSetBytes + overheadBytes;
+        }
+
+        public MemoryFootprint plus(MemoryFootprint other) {
+            return new MemoryFootprint(sketchBytes + other.sketchBytes, activeSetBytes + other.activeSetBytes,
+                                       overheadBytes + other.overheadBytes);
+        }
+
+        // Object size rounded up to the JVM's 8-byte alignment
+        public static long aligned(long bytes) {
+            return (bytes + 7) & ~7L;
+        }
+
+        public static long arrayBytes(int length, int elementBytes) {
+            return aligned(ARRAY_HEADER + (long) length * elementBytes);
+        }
+
+        @Override
+        public String toString() {
+            return total() + " bytes (sketch " + sketchBytes + ", active set " + activeSetBytes
+                 + ", overhead " + overheadBytes + ")";
+        }
+    }
+
+    // Seeded hash for one sketch row: index() is a slot in [0, 2^log2Width), sign() is +1 or -1.
+    // Widths are powers of two so every family masks or shifts instead of dividing.
+    public interface HashFamily {
+        int index(int key);
+        float sign(int key);
+        long memoryBytes();
+        String name();
+        // Just the seeds; the width is stored once per sketch
+        void writeSnapshot(ModelSnapshot.Writer out) throws IOException;
+
+        String[] NAMES = {"murmur", "tabulation", "multiply_shift"};
+
+        // Draws one row's seeds from rand; rows of a sketch share rand so they are independent
+        static HashFamily forRow(String name, Random rand, int log2Width) {
+            switch (name) {
+                case "murmur":
+                    return new MurmurHash(rand, log2Width);
+                case "tabulation":
+                    return new TabulationHash(rand, log2Width);
+                case "multiply_shift":
+                    return new MultiplyShiftHash(rand, log2Width);
+                default:
+                    throw new IllegalArgumentException("Unknown hash family " + name);
+            }
+        }
+
+        static HashFamily readSnapshot(String name, ModelSnapshot.Reader in, int log2Width) throws IOException {
+            switch (name) {
+                case "murmur":
+                    return new MurmurHash(in.getInt(), in.getInt(), log2Width);
+                case "tabulation":
+                    return new TabulationHash(in.getInts(4 * 256), log2Width);
+                case "multiply_shift":
+                    return new MultiplyShiftHash(in.getLong(), in.getLong(), in.getLong(), in.getLong(), log2Width);
+                default:
+                    throw new IOException("Unknown hash family " + name + " in model snapshot");
+            }
+        }
+    }
+
+    // murmur3 fmix32 of the key xor a seed, masked to the width
+    public static class MurmurHash implements HashFamily {
+        private final int indexSeed;
+        private final int signSeed;
+        private final int mask;
+
+        public MurmurHash(Random rand, int log2Width) {
+            this.indexSeed = rand.nextInt();
+            this.signSeed = rand.nextInt();
+            this.mask = (1 << log2Width) - 1;
+        }
+
+        private MurmurHash(int indexSeed, int signSeed, int log2Width) {
+            this.indexSeed = indexSeed;
+            this.signSeed = signSeed;
+            this.mask = (1 << log2Width) - 1;
+        }
+
+        @Override
+        public int index(int key) {
+            return Helper_Function.mix(key ^ indexSeed) & mask;
+        }
+
+        @Override
+        public float sign(int key) {
+            return (Helper_Function.mix(key ^ signSeed) & 1) == 0 ? 1.0f : -1.0f;
+        }
+
+        @Override
+        public long memoryBytes() {
+            return MemoryFootprint.aligned(MemoryFootprint.OBJECT_HEADER + 12);
+        }
+
+        @Override
+        public String name() {
+            return "murmur";
+        }
+
+        @Override
+        public void writeSnapshot(ModelSnapshot.Writer out) throws IOException {
+            out.putInt(indexSeed);
+            out.putInt(signSeed);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof MurmurHash)) return false;
+            MurmurHash other = (MurmurHash) o;
+            return indexSeed == other.indexSeed && signSeed == other.signSeed && mask == other.mask;
+        }
+
+        @Override
+        public int hashCode() {
+            return indexSeed * 31 + signSeed;
+        }
+    }
+
+    // Simple tabulation: xor of four random 256-entry tables, one per key byte (3-independent).
+    // Low bits give the slot and the top bit the sign.
+    public static class TabulationHash implements HashFamily {
+        private final int[] tables;
+        private final int mask;
+
+        public TabulationHash(Random rand, int log2Width) {
+            this.tables = new int[4 * 256];
+            for (int i = 0; i < tables.length; i++) {
+                tables[i] = rand.nextInt();
+            }
+            this.mask = (1 << log2Width) - 1;
+        }
+
+        private TabulationHash(int[] tables, int log2Width) {
+            this.tables = tables;
+            this.mask = (1 << log2Width) - 1;
+        }
+
+        private int hash(int key) {
+            return tables[key & 0xff]
+                 ^ tables[256 + ((key >>> 8) & 0xff)]
+                 ^ tables[512 + ((key >>> 16) & 0xff)]
+                 ^ tables[768 + (key >>> 24)];
+        }
+
+        @Override
+        public int index(int key) {
+            return hash(key) & mask;
+        }
+
+        @Override
+        public float sign(int key) {
+            return hash(key) >= 0 ? 1.0f : -1.0f;
+        }
+
+        @Override
+        public long memoryBytes() {
+            return MemoryFootprint.aligned(MemoryFootprint.OBJECT_HEADER + 8)
+                 + MemoryFootprint.arrayBytes(tables.length, 4);
+        }
+
+        @Override
+        public String name() {
+            return "tabulation";
+        }
+
+        @Override
+        public void writeSnapshot(ModelSnapshot.Writer out) throws IOException {
+            out.putInts(tables, tables.length);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TabulationHash && mask == ((TabulationHash) o).mask
+                && Arrays.equals(tables, ((TabulationHash) o).tables);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(tables);
+        }
+    }
+
+    // Multiply-add-shift (Dietzfelbinger): the top log2Width bits of a * key + b over 64 bits
+    public static class MultiplyShiftHash implements HashFamily {
+        private final long indexMultiplier;
+        private final long indexAddend;
+        private final long signMultiplier;
+        private final long signAddend;
+        private final int shift;
+
+        public MultiplyShiftHash(Random rand, int log2Width) {
+            this.indexMultiplier = rand.nextLong() | 1L;
+            this.indexAddend = rand.nextLong();
+            this.signMultiplier = rand.nextLong() | 1L;
+            this.signAddend = rand.nextLong();
+            this.shift = 64 - log2Width;
+        }
+
+        private MultiplyShiftHash(long indexMultiplier, long indexAddend, long signMultiplier, long signAddend, int log2Width) {
+            this.indexMultiplier = indexMultiplier;
+            this.indexAddend = indexAddend;
+            this.signMultiplier = signMultiplier;
+            this.signAddend = signAddend;
+            this.shift = 64 - log2Width;
+        }
+
+        @Override
+        public int index(int key) {
+            // A shift of 64 is a no-op in Java, so a width of 1 needs its own case
+            return shift == 64 ? 0 : (int) ((indexMultiplier * (key & 0xffffffffL) + indexAddend) >>> shift);
+        }
+
+        @Override
+        public float sign(int key) {
+            return (signMultiplier * (key & 0xffffffffL) + signAddend) >= 0 ? 1.0f : -1.0f;
+        }
+
+        @Override
+        public long memoryBytes() {
+            return MemoryFootprint.aligned(MemoryFootprint.OBJECT_HEADER + 36);
+        }
+
+        @Override
+        public String name() {
+            return "multiply_shift";
+        }
+
+        @Override
+        public void writeSnapshot(ModelSnapshot.Writer out) throws IOException {
+            out.putLong(indexMultiplier);
+            out.putLong(indexAddend);
+            out.putLong(signMultiplier);
+            out.putLong(signAddend);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof MultiplyShiftHash)) return false;
+            MultiplyShiftHash other = (MultiplyShiftHash) o;
+            return indexMultiplier == other.indexMultiplier && indexAddend == other.indexAddend
+                && signMultiplier == other.signMultiplier && signAddend == other.signAddend && shift == other.shift;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(indexMultiplier * 31 + signMultiplier);
+        }
     }
 
     public interface TopKFeatures {
-        boolean Value_Prediction(List<Feature> featureList);
-        boolean Internal_weiight_update(List<Feature> featureList, boolean Given_Sign);
+        // Row view: the features of one example are indices/values[start, end)
+        boolean Value_Prediction(int[] indices, float[] values, int start, int end);
+        boolean Internal_weiight_update(int[] indices, float[] values, int start, int end, boolean Given_Sign);
         List<Feature> getTopFeatures();
         float Learning_update();
+
+        // What this model currently holds on the heap
+        MemoryFootprint memoryFootprint();
+
+        // Every field needed to keep scoring or training; the layout is read back by ModelSnapshot.load
+        void writeSnapshot(ModelSnapshot.Writer out) throws IOException;
+
+        // A frozen copy of what Value_Prediction reads, for SnapshotPublisher
+        ScoringSnapshot scoringSnapshot();
+
+        default long memoryFootprintBytes() {
+            return memoryFootprint().total();
+        }
+
+        default boolean Value_Prediction(List<Feature> featureList) {
+            CsrDataset row = CsrDataset.singleRow(featureList);
+            return Value_Prediction(row.indices, row.values, 0, row.nnz());
+        }
+
+        default boolean Internal_weiight_update(List<Feature> featureList, boolean Given_Sign) {
+            CsrDataset row = CsrDataset.singleRow(featureList);
+            return Internal_weiight_update(row.indices, row.values, 0, row.nnz(), Given_Sign);
+        }
+
+        // Mini-batch over rows [firstRow, lastRow); returns how many were mispredicted.
+        // Models that can batch compute every margin first and then apply one merged sparse
+        // gradient; the default just runs the rows one at a time.
+        default int Internal_weiight_update(CsrDataset batch, int firstRow, int lastRow) {
+            int incorrectPredictions = 0;
+            for (int row = firstRow; row < lastRow; row++) {
+                boolean classifier_label = batch.label(row);
+                boolean predictedLabel = Internal_weiight_update(batch.indices, batch.values,
+                    batch.rowStart(row), batch.rowEnd(row), classifier_label);
+                if (predictedLabel != classifier_label) incorrectPredictions++;
+            }
+            return incorrectPredictions;
+        }
+    }
+
+    // A model's scoring state copied at one point in training. It shares nothing mutable with the
+    // live model or with other readers, so any number of threads may score through it at once.
+    public interface ScoringSnapshot {
+        boolean Value_Prediction(int[] indices, float[] values, int start, int end);
+    }
+
+    // Models whose state is linear in the sketch, so replicas trained on shards can be combined
+    public interface MergeableModel<T extends MergeableModel<T>> extends TopKFeatures {
+        // this += other; both must have been built with the same sketch shape and hash seeds
+        void merge(T other);
+        void scale(float factor);
+        T copy();
     }
 
     // Base Logistic Regression Model
     public static class UncompressedLogisticRegression implements TopKFeatures {
         protected float[] modelWeights;
+        protected int dimensionality;
         protected float modelBias;
         protected int topKFeatures;
         protected float learningRateInitial;
         protected float regularizationFactor;
         protected long iterationCount;
+        protected float[] batchSteps = new float[0];
+        // Lazy L2: the real weights are modelWeights * Measure, so decay is one multiply per step
+        protected float Measure;
+
+        // Below this scale the stored weights are folded back in before they lose precision
+        static final float MIN_MEASURE = 1e-6f;
 
         public UncompressedLogisticRegression(int dimensionality, int topKFeatures, float learningRateInitial, float regularizationFactor, boolean noBias) {
             this.modelWeights = new float[dimensionality];
+            this.dimensionality = dimensionality;
             this.modelBias = 0;
             this.topKFeatures = topKFeatures;
             this.learningRateInitial = learningRateInitial;
             this.regularizationFactor = regularizationFactor;
             this.iterationCount = 1;
+            this.Measure = 1.0f;
         }
 
-        protected float product(List<Feature> featureList) {
-            float sum = modelBias;
-            for (Feature f : featureList) {
-                if (f.featureIndex < modelWeights.length) {
-                    sum += modelWeights[f.featureIndex] * f.featureValue;
+        protected float product(int[] indices, float[] values, int start, int end) {
+            float sum = 0.0f;
+            for (int i = start; i < end; i++) {
+                if (indices[i] < modelWeights.length) {
+                    sum += modelWeights[indices[i]] * values[i];
                 }
             }
-            return sum;
+            return sum * Measure + modelBias;
+        }
+
+        protected void decay(float scaledLearningRate, long steps) {
+            Measure *= (float) Math.pow(1 - scaledLearningRate * regularizationFactor, steps);
+            if (Measure < MIN_MEASURE) {
+                renormalize();
+            }
+        }
+
+        public void renormalize() {
+            for (int i = 0; i < dimensionality; i++) {
+                modelWeights[i] *= Measure;
+            }
+            Measure = 1.0f;
+        }
+
+        // Weights grow on demand when the dimensionality is not known upfront (--stream)
+        protected void ensureDimension(int featureIndex) {
+            if (featureIndex >= modelWeights.length) {
+                modelWeights = Arrays.copyOf(modelWeights, Math.max(featureIndex + 1, modelWeights.length * 2));
+            }
+            if (featureIndex >= dimensionality) {
+                dimensionality = featureIndex + 1;
+            }
         }
 
         @Override
-        public boolean Value_Prediction(List<Feature> featureList) {
-            return product(featureList) >= 0;
+        public boolean Value_Prediction(int[] indices, float[] values, int start, int end) {
+            return product(indices, values, start, end) >= 0;
         }
 
         @Override
-        public boolean Internal_weiight_update(List<Feature> featureList, boolean Given_Sign) {
+        public boolean Internal_weiight_update(int[] indices, float[] values, int start, int end, boolean Given_Sign) {
             int classifier_label = Given_Sign ? 1 : -1;
-            float raw_model_score = product(featureList);
+            float raw_model_score = product(indices, values, start, end);
             float Gradient = Helper_Function.logisticGrad(classifier_label * raw_model_score);
             float denominator = 1.0f
                             + learningRateInitial 
@@ -110,11 +711,11 @@ public class WMSketchClassification {
                             * iterationCount;
             float scaledLearningRate        = learningRateInitial 
                             / denominator;
-            featureList.stream()
-            .filter(OneFeature -> OneFeature.featureIndex < modelWeights.length)
-            .forEach(OneFeature ->
-                modelWeights[OneFeature.featureIndex] -= scaledLearningRate * classifier_label * Gradient * OneFeature.featureValue
-            );
+            decay(scaledLearningRate, 1);
+            for (int i = start; i < end; i++) {
+                ensureDimension(indices[i]);
+                modelWeights[indices[i]] -= scaledLearningRate * classifier_label * Gradient * values[i] / Measure;
+            }
  
             float adjustmentFactor = scaledLearningRate * classifier_label;
             float biasChange       = adjustmentFactor * Gradient;
@@ -123,11 +724,168 @@ public class WMSketchClassification {
             return raw_model_score >= 0;
         }
 
+        // Totals shared by the Hogwild workers of one epoch. Each worker adds its bias change,
+        // steps and log decay every FLUSH_EVERY examples, or sooner once its own decay passes
+        // FLUSH_DECAY, and rereads the sums. It sees the others' progress with a short lag
+        // instead of racing on modelBias and Measure per example.
+        static class HogwildState {
+            static final int FLUSH_EVERY = 256;
+            static final double FLUSH_DECAY = 0.999;
+            final DoubleAdder biasChange = new DoubleAdder();
+            final DoubleAdder logDecay = new DoubleAdder();
+            final LongAdder steps = new LongAdder();
+        }
+
+        // Per-thread state for trainHogwild: the shared totals as of the last flush, plus what this
+        // worker has not published yet
+        static class HogwildWorker {
+            final HogwildState shared;
+            final float measure;
+            float seenBias;
+            long seenSteps;
+            float seenScale;
+            float biasChange;
+            double decay = 1.0;
+            int steps;
+
+            HogwildWorker(HogwildState shared, float measure) {
+                this.shared = shared;
+                this.measure = measure;
+                this.seenScale = measure;
+            }
+
+            void flush() {
+                shared.biasChange.add(biasChange);
+                shared.logDecay.add(Math.log(decay));
+                shared.steps.add(steps);
+                biasChange = 0.0f;
+                decay = 1.0;
+                steps = 0;
+                seenBias = (float) shared.biasChange.sum();
+                seenSteps = shared.steps.sum();
+                seenScale = (float) (measure * Math.exp(shared.logDecay.sum()));
+            }
+        }
+
+        // Internal_weiight_update for one Hogwild worker. Measure, modelBias and iterationCount
+        // stay fixed during the epoch; the worker predicts and writes against them plus the
+        // progress it has seen, which is how far along the sequential update would be.
+        boolean Internal_weiight_update(int[] indices, float[] values, int start, int end, boolean Given_Sign,
+                                        HogwildWorker worker) {
+            int classifier_label = Given_Sign ? 1 : -1;
+            float sum = 0.0f;
+            for (int i = start; i < end; i++) {
+                sum += modelWeights[indices[i]] * values[i];
+            }
+            float raw_model_score = sum * worker.seenScale * (float) worker.decay
+                            + modelBias - worker.seenBias - worker.biasChange;
+            float Gradient = Helper_Function.logisticGrad(classifier_label * raw_model_score);
+            float scaledLearningRate = learningRateInitial
+                            / (1.0f + learningRateInitial * regularizationFactor * (iterationCount + worker.seenSteps + worker.steps));
+            worker.decay *= 1 - scaledLearningRate * regularizationFactor;
+            float scale = worker.seenScale * (float) worker.decay;
+            float step = scaledLearningRate * classifier_label * Gradient;
+            for (int i = start; i < end; i++) {
+                modelWeights[indices[i]] -= step * values[i] / scale;
+            }
+            worker.biasChange += step;
+            if (++worker.steps == HogwildState.FLUSH_EVERY || worker.decay < HogwildState.FLUSH_DECAY) {
+                worker.flush();
+            }
+            return raw_model_score >= 0;
+        }
+
+        // Called once every worker has flushed and stopped
+        void foldIn(HogwildState state) {
+            modelBias -= (float) state.biasChange.sum();
+            iterationCount += state.steps.sum();
+            Measure *= (float) Math.exp(state.logDecay.sum());
+        }
+
+        @Override
+        public int Internal_weiight_update(CsrDataset batch, int firstRow, int lastRow) {
+            float scaledLearningRate = learningRateInitial
+                            / (1.0f + learningRateInitial * regularizationFactor * iterationCount);
+            if (batchSteps.length < lastRow - firstRow) {
+                batchSteps = new float[lastRow - firstRow];
+            }
+            int incorrectPredictions = 0;
+            float biasChange = 0.0f;
+            for (int row = firstRow; row < lastRow; row++) {
+                boolean Given_Sign = batch.label(row);
+                int classifier_label = Given_Sign ? 1 : -1;
+                float raw_model_score = product(batch.indices, batch.values, batch.rowStart(row), batch.rowEnd(row));
+                if ((raw_model_score >= 0) != Given_Sign) incorrectPredictions++;
+                float step = scaledLearningRate * classifier_label
+                           * Helper_Function.logisticGrad(classifier_label * raw_model_score);
+                batchSteps[row - firstRow] = step;
+                biasChange += step;
+            }
+            decay(scaledLearningRate, lastRow - firstRow);
+            for (int row = firstRow; row < lastRow; row++) {
+                float step = batchSteps[row - firstRow] / Measure;
+                for (int i = batch.rowStart(row); i < batch.rowEnd(row); i++) {
+                    ensureDimension(batch.indices[i]);
+                    modelWeights[batch.indices[i]] -= step * batch.values[i];
+                }
+            }
+            modelBias -= biasChange;
+            iterationCount += lastRow - firstRow;
+            return incorrectPredictions;
+        }
+
+        @Override
+        public MemoryFootprint memoryFootprint() {
+            return new MemoryFootprint(MemoryFootprint.arrayBytes(modelWeights.length, 4), 0,
+                MemoryFootprint.aligned(MemoryFootprint.OBJECT_HEADER + 48)
+                    + MemoryFootprint.arrayBytes(batchSteps.length, 4));
+        }
+
+        @Override
+        public void writeSnapshot(ModelSnapshot.Writer out) throws IOException {
+            out.putInt(dimensionality);
+            out.putInt(topKFeatures);
+            out.putFloat(learningRateInitial);
+            out.putFloat(regularizationFactor);
+            out.putFloat(modelBias);
+            out.putFloat(Measure);
+            out.putLong(iterationCount);
+            out.putFloats(modelWeights, dimensionality);
+        }
+
+        @Override
+        public ScoringSnapshot scoringSnapshot() {
+            float[] weights = Arrays.copyOf(modelWeights, dimensionality);
+            float scale = Measure;
+            float bias = modelBias;
+            return (indices, values, start, end) -> {
+                float sum = 0.0f;
+                for (int i = start; i < end; i++) {
+                    if (indices[i] < weights.length) {
+                        sum += weights[indices[i]] * values[i];
+                    }
+                }
+                return sum * scale + bias >= 0;
+            };
+        }
+
+        static UncompressedLogisticRegression readSnapshot(ModelSnapshot.Reader in) throws IOException {
+            int dimensionality = in.getInt();
+            int topKFeatures = in.getInt();
+            UncompressedLogisticRegression model = new UncompressedLogisticRegression(0, topKFeatures, in.getFloat(), in.getFloat(), false);
+            model.modelBias = in.getFloat();
+            model.Measure = in.getFloat();
+            model.iterationCount = in.getLong();
+            model.modelWeights = in.getFloats(dimensionality);
+            model.dimensionality = dimensionality;
+            return model;
+        }
+
         @Override
         public List<Feature> getTopFeatures() {
             List<Feature> list = new ArrayList<>();
-            for (int weightIndex = 0; weightIndex < modelWeights.length; weightIndex++) {
-                Feature OneFeature = new Feature(weightIndex, modelWeights[weightIndex]);
+            for (int weightIndex = 0; weightIndex < dimensionality; weightIndex++) {
+                Feature OneFeature = new Feature(weightIndex, modelWeights[weightIndex] * Measure);
                 list.add(OneFeature);
             }
 
@@ -154,35 +912,84 @@ public class WMSketchClassification {
     }
 
     // WM-Sketch Implementation
-    public static class WMSketch implements TopKFeatures {
+    public static class WMSketch implements MergeableModel<WMSketch> {
         private int k;
         private LogisticSketch logisticSketch;
         private Heap priorityQueue;
-        private float[] updatedWeights;
-        private int hashTableSize;
+        private SparseAccumulator accumulator = new SparseAccumulator(16);
     
         public WMSketch(int dimensionality, int Width_of_table, int Deep_Size, int initial_Parameter,
                         float learningRateInitial, float regularizationFactor, boolean medianUpdate, int topKFeatures) {
+            this(dimensionality, Width_of_table, Deep_Size, initial_Parameter, learningRateInitial,
+                 regularizationFactor, medianUpdate, topKFeatures, "murmur");
+        }
+
+        public WMSketch(int dimensionality, int Width_of_table, int Deep_Size, int initial_Parameter,
+                        float learningRateInitial, float regularizationFactor, boolean medianUpdate, int topKFeatures,
+                        String hashFamily) {
+            this(dimensionality, Width_of_table, Deep_Size, initial_Parameter, learningRateInitial,
+                 regularizationFactor, medianUpdate, topKFeatures, hashFamily, "float");
+        }
+
+        public WMSketch(int dimensionality, int Width_of_table, int Deep_Size, int initial_Parameter,
+                        float learningRateInitial, float regularizationFactor, boolean medianUpdate, int topKFeatures,
+                        String hashFamily, String counterType) {
             this.k = topKFeatures;
-            this.logisticSketch = new LogisticSketch(Width_of_table, Deep_Size, initial_Parameter, learningRateInitial, regularizationFactor, medianUpdate);
+            this.logisticSketch = new LogisticSketch(Width_of_table, Deep_Size, initial_Parameter, learningRateInitial,
+                                                     regularizationFactor, medianUpdate, hashFamily, counterType);
             this.priorityQueue = new Heap(k);
-            this.hashTableSize = 1 << Width_of_table;
-            this.updatedWeights = new float[hashTableSize];
         }
-    
+
+        private WMSketch(WMSketch source) {
+            this.k = source.k;
+            this.logisticSketch = source.logisticSketch.copy();
+            this.priorityQueue = source.priorityQueue.copy();
+        }
+
+        private WMSketch(int k, LogisticSketch logisticSketch, Heap priorityQueue) {
+            this.k = k;
+            this.logisticSketch = logisticSketch;
+            this.priorityQueue = priorityQueue;
+        }
+
+        // Sums the sketches, then re-ranks both heaps' candidates by their merged estimates
+        @Override
+        public void merge(WMSketch other) {
+            logisticSketch.merge(other.logisticSketch, 1.0f);
+            List<Integer> candidates = priorityQueue.keys();
+            for (int pos = 0; pos < other.priorityQueue.size(); pos++) {
+                if (!priorityQueue.contains(other.priorityQueue.keyAt(pos))) {
+                    candidates.add(other.priorityQueue.keyAt(pos));
+                }
+            }
+            priorityQueue = new Heap(k);
+            for (int key : candidates) {
+                priorityQueue.insertOrChange(key, logisticSketch.get(key));
+            }
+        }
+
+        @Override
+        public void scale(float factor) {
+            logisticSketch.scale(factor);
+            for (int key : priorityQueue.keys()) {
+                priorityQueue.changeVal(key, logisticSketch.get(key));
+            }
+        }
+
+        @Override
+        public WMSketch copy() {
+            return new WMSketch(this);
+        }
+    
         @Override
-        public boolean Value_Prediction(List<Feature> featureList) {
+        public boolean Value_Prediction(int[] indices, float[] values, int start, int end) {
             float sum = logisticSketch.Learning_b();
-            Iterator<Feature> it = featureList.iterator();
-            while (it.hasNext()) {
-                Feature f = it.next();
-                int rawHash   = Integer.hashCode(f.featureIndex);
-                int absHash   = Math.abs(rawHash);
-                int slot      = absHash % hashTableSize;
-                if (priorityQueue.contains(slot)) {
-                    float weight  = priorityQueue.getMap().get(slot);
+            for (int i = start; i < end; i++) {
+                int pos = priorityQueue.indexOf(indices[i]);
+                if (pos >= 0) {
+                    float weight  = priorityQueue.valueAt(pos);
                     float scaleFactor = logisticSketch.Measure();
-                    float weighted   = weight * f.featureValue;
+                    float weighted   = weight * values[i];
                     float pre_feature_value    = weighted * scaleFactor;
                     sum          += pre_feature_value;
                 }
@@ -191,27 +998,78 @@ public class WMSketchClassification {
         }
     
         @Override
-        public boolean Internal_weiight_update(List<Feature> featureList, boolean Given_Sign) {
-            logisticSketch.Internal_weiight_update(updatedWeights, featureList, Given_Sign);
-            int pos = 0;
-            while (pos < featureList.size()) {
-                Feature OneFeature     = featureList.get(pos);
-                int rawHash      = Integer.hashCode(OneFeature.featureIndex);
-                int absHash      = Math.abs(rawHash);
-                int slot         = absHash % hashTableSize;
-                priorityQueue.insertOrChange(slot, updatedWeights[slot]);
+        public boolean Internal_weiight_update(int[] indices, float[] values, int start, int end, boolean Given_Sign) {
+            logisticSketch.Internal_weiight_update(indices, values, start, end, Given_Sign);
+            int pos = start;
+            while (pos < end) {
+                int key          = indices[pos];
+                priorityQueue.insertOrChange(key, logisticSketch.get(key));
                 pos++;
             }
-            return Value_Prediction(featureList);
+            return Value_Prediction(indices, values, start, end);
             
         }
     
+        // Like the per-example update, rows are scored after the update that includes them
+        @Override
+        public int Internal_weiight_update(CsrDataset batch, int firstRow, int lastRow) {
+            logisticSketch.Internal_weiight_update(batch, firstRow, lastRow, accumulator);
+            for (int i = 0; i < accumulator.size(); i++) {
+                int key = accumulator.keyAt(i);
+                priorityQueue.insertOrChange(key, logisticSketch.get(key));
+            }
+            int incorrectPredictions = 0;
+            for (int row = firstRow; row < lastRow; row++) {
+                boolean predictedLabel = Value_Prediction(batch.indices, batch.values, batch.rowStart(row), batch.rowEnd(row));
+                if (predictedLabel != batch.label(row)) incorrectPredictions++;
+            }
+            return incorrectPredictions;
+        }
+
+        @Override
+        public MemoryFootprint memoryFootprint() {
+            return logisticSketch.memoryFootprint()
+                .plus(new MemoryFootprint(0, priorityQueue.memoryBytes(),
+                    MemoryFootprint.aligned(MemoryFootprint.OBJECT_HEADER + 16) + accumulator.memoryBytes()));
+        }
+
+        @Override
+        public void writeSnapshot(ModelSnapshot.Writer out) throws IOException {
+            out.putInt(k);
+            logisticSketch.writeSnapshot(out);
+            priorityQueue.writeSnapshot(out);
+        }
+
+        // Predictions only read the active set, so the sketch itself is not copied
+        @Override
+        public ScoringSnapshot scoringSnapshot() {
+            Heap active = priorityQueue.copy();
+            float scale = logisticSketch.Measure();
+            float bias = logisticSketch.Learning_b();
+            return (indices, values, start, end) -> {
+                float sum = bias;
+                for (int i = start; i < end; i++) {
+                    int pos = active.indexOf(indices[i]);
+                    if (pos >= 0) {
+                        sum += active.valueAt(pos) * values[i] * scale;
+                    }
+                }
+                return sum >= 0;
+            };
+        }
+
+        static WMSketch readSnapshot(ModelSnapshot.Reader in) throws IOException {
+            int k = in.getInt();
+            LogisticSketch logisticSketch = LogisticSketch.readSnapshot(in);
+            return new WMSketch(k, logisticSketch, Heap.readSnapshot(in));
+        }
+
         @Override
         public List<Feature> getTopFeatures() {
             List<Integer> keyList = priorityQueue.keys();
             for (int i = 0; i < keyList.size(); i++) {
                 int slotKey    = keyList.get(i);
-                float newValue = updatedWeights[slotKey];
+                float newValue = logisticSketch.get(slotKey);
                 priorityQueue.changeVal(slotKey, newValue);
             }
 
@@ -251,75 +1109,149 @@ public class WMSketchClassification {
     }
 
     // Active-Set WM-Sketch Implementation
-    public static class AWMsketch extends UncompressedLogisticRegression {
-        private int dimensionality;
+    // Keeps modelBias, Measure, iterationCount and the step-size settings in the inherited fields;
+    // the weights live in the sketch and the active set instead of modelWeights
+    public static class AWMsketch extends UncompressedLogisticRegression implements MergeableModel<AWMsketch> {
         private LogisticSketch logisticSketch;
         private Heap priorityQueue;
-        private float modelBias;
-        private float learningRateInitial;
-        private float regularizationFactor;
-        private float Measure;
-        private long iterationCount;
+        private SparseAccumulator accumulator = new SparseAccumulator(16);
     
         public AWMsketch(int dimensionality, int k, int Width_of_table, int Deep_Size, int initial_Parameter,
                          float learningRateInitial, float regularizationFactor) {
-            super(dimensionality, k, learningRateInitial, regularizationFactor, false);
-            this.dimensionality = dimensionality;
-            this.learningRateInitial = learningRateInitial;
-            this.regularizationFactor = regularizationFactor;
-            this.modelBias = 0.0f;
-            this.Measure = 1.0f;
+            this(dimensionality, k, Width_of_table, Deep_Size, initial_Parameter, learningRateInitial,
+                 regularizationFactor, "murmur");
+        }
+
+        public AWMsketch(int dimensionality, int k, int Width_of_table, int Deep_Size, int initial_Parameter,
+                         float learningRateInitial, float regularizationFactor, String hashFamily) {
+            this(dimensionality, k, Width_of_table, Deep_Size, initial_Parameter, learningRateInitial,
+                 regularizationFactor, hashFamily, "float");
+        }
+
+        public AWMsketch(int dimensionality, int k, int Width_of_table, int Deep_Size, int initial_Parameter,
+                         float learningRateInitial, float regularizationFactor, String hashFamily, String counterType) {
+            // The dense weights of the superclass are never used here, so none are allocated
+            super(0, k, learningRateInitial, regularizationFactor, false);
             this.iterationCount = 0;
             this.logisticSketch = new LogisticSketch(
                 Width_of_table, Deep_Size, initial_Parameter,
-                learningRateInitial, regularizationFactor, false
+                learningRateInitial, regularizationFactor, false, hashFamily, counterType
             );
             this.priorityQueue = new Heap(k);
         }
+
+        private AWMsketch(AWMsketch source) {
+            super(0, source.topKFeatures, source.learningRateInitial, source.regularizationFactor, false);
+            this.modelBias = source.modelBias;
+            this.Measure = source.Measure;
+            this.iterationCount = source.iterationCount;
+            this.logisticSketch = source.logisticSketch.copy();
+            this.priorityQueue = source.priorityQueue.copy();
+        }
+
+        private AWMsketch(int k, float learningRateInitial, float regularizationFactor,
+                          LogisticSketch logisticSketch, Heap priorityQueue) {
+            super(0, k, learningRateInitial, regularizationFactor, false);
+            this.logisticSketch = logisticSketch;
+            this.priorityQueue = priorityQueue;
+        }
+
+        private float effectiveWeight(int key) {
+            int pos = priorityQueue.indexOf(key);
+            return Measure * (pos >= 0 ? priorityQueue.valueAt(pos) : logisticSketch.get(key));
+        }
+
+        // Sums the two weight vectors: the sketches add linearly and the union of both active sets
+        // is re-ranked by merged weight. Candidates that miss the cut are folded back into the sketch.
+        @Override
+        public void merge(AWMsketch other) {
+            List<Integer> candidates = priorityQueue.keys();
+            for (int pos = 0; pos < other.priorityQueue.size(); pos++) {
+                if (!priorityQueue.contains(other.priorityQueue.keyAt(pos))) {
+                    candidates.add(other.priorityQueue.keyAt(pos));
+                }
+            }
+            float[] mergedWeights = new float[candidates.size()];
+            for (int i = 0; i < mergedWeights.length; i++) {
+                int key = candidates.get(i);
+                mergedWeights[i] = effectiveWeight(key) + other.effectiveWeight(key);
+            }
+
+            logisticSketch.scale(Measure);
+            logisticSketch.merge(other.logisticSketch, other.Measure);
+            Measure = 1.0f;
+            modelBias += other.modelBias;
+            // Each replica keeps its own step-size schedule, so take the furthest along
+            iterationCount = Math.max(iterationCount, other.iterationCount);
+
+            priorityQueue = new Heap(priorityQueue.capacity);
+            for (int i = 0; i < mergedWeights.length; i++) {
+                priorityQueue.insertOrChange(candidates.get(i), mergedWeights[i]);
+            }
+            for (int i = 0; i < mergedWeights.length; i++) {
+                int key = candidates.get(i);
+                if (!priorityQueue.contains(key)) {
+                    logisticSketch.Internal_weiight_update(key, mergedWeights[i] - logisticSketch.get(key));
+                }
+            }
+        }
+
+        @Override
+        public void scale(float factor) {
+            Measure *= factor;
+            modelBias *= factor;
+        }
+
+        // Folds Measure into the active set and the sketch rather than the (empty) dense weights
+        @Override
+        public void renormalize() {
+            for (int key : priorityQueue.keys()) {
+                priorityQueue.changeVal(key, priorityQueue.get(key) * Measure);
+            }
+            logisticSketch.scale(Measure);
+            Measure = 1.0f;
+        }
+
+        @Override
+        protected void ensureDimension(int featureIndex) {
+            // No dense weights to grow
+        }
+
+        @Override
+        public AWMsketch copy() {
+            return new AWMsketch(this);
+        }
     
-        public float product(List<Feature> featureValues) {
+        @Override
+        public float product(int[] indices, float[] values, int start, int end) {
             float raw_model_score = 0.0f;
-            Iterator<Feature> iter = featureValues.iterator();
-            while (iter.hasNext()) {
-                Feature f = iter.next();
-                int weightIndex = f.featureIndex;
+            for (int i = start; i < end; i++) {
+                int weightIndex = indices[i];
                 float Current_weight;
-                if (priorityQueue.contains(weightIndex)) {
-                    Current_weight = priorityQueue.get(weightIndex);
+                int pos = priorityQueue.indexOf(weightIndex);
+                if (pos >= 0) {
+                    Current_weight = priorityQueue.valueAt(pos);
                 } else {
                     Current_weight = logisticSketch.get(weightIndex);
                 }
-                raw_model_score += Current_weight * f.featureValue;
+                raw_model_score += Current_weight * values[i];
             }
             return raw_model_score * Measure;
         }
     
-        private float minAbs(Heap heap) {
-            float min = Float.MAX_VALUE;
-            Iterator<Float> it = heap.getMap().values().iterator();
-            while (it.hasNext()) {
-                float Current_weight = it.next();
-                float weightMagnitude = Math.abs(Current_weight);
-                if (weightMagnitude < min) {
-                    min = weightMagnitude;
-                }
-            }
-            return min;
-        }
-    
         @Override
-        public boolean Value_Prediction(List<Feature> featureValues) {
-            float raw_model_score = product(featureValues) + modelBias;
+        public boolean Value_Prediction(int[] indices, float[] values, int start, int end) {
+            float raw_model_score = product(indices, values, start, end) + modelBias;
             return raw_model_score >= 0 ? true : false;
         }
     
         @Override
-        public boolean Internal_weiight_update(List<Feature> featureValues, boolean Given_Sign) {
-            if (featureValues.isEmpty()) {
+        public boolean Internal_weiight_update(int[] indices, float[] values, int start, int end, boolean Given_Sign) {
+            if (start == end) {
                 return modelBias >= 0;
             }
     
-            float tmp2 = product(featureValues);
+            float tmp2 = product(indices, values, start, end);
             float raw_model_score = tmp2 + modelBias;
             int classifier_label = Given_Sign ? 1 : -1;
     
@@ -334,24 +1266,22 @@ public class WMSketchClassification {
     
             Measure = Measure * (1 - scaledLearningRate * regularizationFactor);
     
-            int i = 0;
-            while (i < featureValues.size()) {
-                Feature f = featureValues.get(i);
+            int i = start;
+            while (i < end) {
+                int weightIndex = indices[i];
+                float Adjusted_weight = scaledLearningRate * classifier_label * g * values[i];
                 i++;
-                int weightIndex = f.featureIndex;
-                float Adjusted_weight = scaledLearningRate * classifier_label * g * f.featureValue;
     
-                if (priorityQueue.contains(weightIndex)) {
-                    float Updated_weight = priorityQueue.get(weightIndex) - Adjusted_weight;
+                int pos = priorityQueue.indexOf(weightIndex);
+                if (pos >= 0) {
+                    float Updated_weight = priorityQueue.valueAt(pos) - Adjusted_weight;
                     priorityQueue.changeVal(weightIndex, Updated_weight);
                 } else {
                     float storedWeight = logisticSketch.get(weightIndex);
                     float Updated_weight = storedWeight - Adjusted_weight;
                     logisticSketch.Internal_weiight_update(weightIndex, -Adjusted_weight);
     
-                    int heapSize = priorityQueue.getMap().size();
-                    if (heapSize < priorityQueue.capacity
-                     || Math.abs(Updated_weight) > minAbs(priorityQueue)) {
+                    if (priorityQueue.admits(Updated_weight)) {
                         priorityQueue.insertOrChange(weightIndex, Updated_weight);
                     }
                 }
@@ -363,6 +1293,117 @@ public class WMSketchClassification {
             return predictedLabel;
         }
     
+        @Override
+        public MemoryFootprint memoryFootprint() {
+            return logisticSketch.memoryFootprint()
+                .plus(new MemoryFootprint(0, priorityQueue.memoryBytes(),
+                    super.memoryFootprint().total() + 12 /* three references */
+                        + accumulator.memoryBytes()));
+        }
+
+        @Override
+        public void writeSnapshot(ModelSnapshot.Writer out) throws IOException {
+            out.putInt(topKFeatures);
+            out.putFloat(learningRateInitial);
+            out.putFloat(regularizationFactor);
+            out.putFloat(modelBias);
+            out.putFloat(Measure);
+            out.putLong(iterationCount);
+            logisticSketch.writeSnapshot(out);
+            priorityQueue.writeSnapshot(out);
+        }
+
+        @Override
+        public ScoringSnapshot scoringSnapshot() {
+            LogisticSketch sketch = logisticSketch.copy();
+            Heap active = priorityQueue.copy();
+            float scale = Measure;
+            float bias = modelBias;
+            ThreadLocal<float[]> scratches = ThreadLocal.withInitial(() -> new float[sketch.depth]);
+            return (indices, values, start, end) -> {
+                float[] scratch = null;
+                float raw_model_score = 0.0f;
+                for (int i = start; i < end; i++) {
+                    int pos = active.indexOf(indices[i]);
+                    float Current_weight;
+                    if (pos >= 0) {
+                        Current_weight = active.valueAt(pos);
+                    } else {
+                        if (scratch == null) {
+                            scratch = scratches.get();
+                        }
+                        Current_weight = sketch.get(indices[i], scratch);
+                    }
+                    raw_model_score += Current_weight * values[i];
+                }
+                return raw_model_score * scale + bias >= 0;
+            };
+        }
+
+        static AWMsketch readSnapshot(ModelSnapshot.Reader in) throws IOException {
+            int k = in.getInt();
+            float learningRateInitial = in.getFloat();
+            float regularizationFactor = in.getFloat();
+            float modelBias = in.getFloat();
+            float Measure = in.getFloat();
+            long iterationCount = in.getLong();
+            LogisticSketch logisticSketch = LogisticSketch.readSnapshot(in);
+            AWMsketch model = new AWMsketch(k, learningRateInitial, regularizationFactor, logisticSketch, Heap.readSnapshot(in));
+            model.modelBias = modelBias;
+            model.Measure = Measure;
+            model.iterationCount = iterationCount;
+            return model;
+        }
+
+        @Override
+        public int Internal_weiight_update(CsrDataset batch, int firstRow, int lastRow) {
+            float scaledLearningRate = learningRateInitial
+                       / (1.0f + learningRateInitial * regularizationFactor * iterationCount);
+            int incorrectPredictions = 0;
+            float biasChange = 0.0f;
+            int updates = 0;
+            accumulator.clear();
+            for (int row = firstRow; row < lastRow; row++) {
+                int start = batch.rowStart(row);
+                int end = batch.rowEnd(row);
+                boolean Given_Sign = batch.label(row);
+                if (start == end) {
+                    if ((modelBias >= 0) != Given_Sign) incorrectPredictions++;
+                    continue;
+                }
+                int classifier_label = Given_Sign ? 1 : -1;
+                float raw_model_score = product(batch.indices, batch.values, start, end) + modelBias;
+                if ((raw_model_score >= 0) != Given_Sign) incorrectPredictions++;
+                float step = scaledLearningRate * classifier_label
+                           * Helper_Function.logisticGrad(classifier_label * raw_model_score);
+                for (int i = start; i < end; i++) {
+                    accumulator.add(batch.indices[i], step * batch.values[i]);
+                }
+                biasChange += step;
+                updates++;
+            }
+            Measure *= (float) Math.pow(1 - scaledLearningRate * regularizationFactor, updates);
+            iterationCount += updates;
+
+            // One heap or sketch update per distinct feature in the batch
+            for (int i = 0; i < accumulator.size(); i++) {
+                int weightIndex = accumulator.keyAt(i);
+                float Adjusted_weight = accumulator.sumAt(i);
+                int pos = priorityQueue.indexOf(weightIndex);
+                if (pos >= 0) {
+                    priorityQueue.changeVal(weightIndex, priorityQueue.valueAt(pos) - Adjusted_weight);
+                } else {
+                    float Updated_weight = logisticSketch.get(weightIndex) - Adjusted_weight;
+                    logisticSketch.Internal_weiight_update(weightIndex, -Adjusted_weight);
+                    if (priorityQueue.admits(Updated_weight)) {
+                        priorityQueue.insertOrChange(weightIndex, Updated_weight);
+                    }
+                }
+            }
+            modelBias = modelBias - biasChange;
+            return incorrectPredictions;
+        }
+    
         @Override
         public List<Feature> getTopFeatures() {
             List<Pair> items = priorityQueue.items();
@@ -419,6 +1460,49 @@ public static class TruncatedModel implements TopKFeatures {
         this.priorityQueue = new Heap(k);
     }
 
+    @Override
+    public MemoryFootprint memoryFootprint() {
+        return new MemoryFootprint(0, priorityQueue.memoryBytes(),
+            MemoryFootprint.aligned(MemoryFootprint.OBJECT_HEADER + 32));
+    }
+
+    @Override
+    public void writeSnapshot(ModelSnapshot.Writer out) throws IOException {
+        out.putFloat(learningRateInitial);
+        out.putFloat(regularizationFactor);
+        out.putFloat(modelBias);
+        out.putFloat(Measure);
+        out.putLong(iterationCount);
+        priorityQueue.writeSnapshot(out);
+    }
+
+    @Override
+    public ScoringSnapshot scoringSnapshot() {
+        Heap active = priorityQueue.copy();
+        float scale = Measure;
+        float bias = modelBias;
+        return (indices, values, start, end) -> {
+            float sum = 0.0f;
+            for (int i = start; i < end; i++) {
+                int pos = active.indexOf(indices[i]);
+                if (pos >= 0) {
+                    sum += active.valueAt(pos) * values[i];
+                }
+            }
+            return sum * scale + bias >= 0;
+        };
+    }
+
+    static TruncatedModel readSnapshot(ModelSnapshot.Reader in) throws IOException {
+        TruncatedModel model = new TruncatedModel(0, in.getFloat(), in.getFloat());
+        model.modelBias = in.getFloat();
+        model.Measure = in.getFloat();
+        model.iterationCount = in.getLong();
+        model.priorityQueue = Heap.readSnapshot(in);
+        model.capacity = model.priorityQueue.capacity;
+        return model;
+    }
+
     @Override
     public List<Feature> getTopFeatures() {
         List<Pair> items = priorityQueue.items();
@@ -448,34 +1532,34 @@ public static class TruncatedModel implements TopKFeatures {
     }
 
     private float getWeight(int key) {
-        if (priorityQueue.contains(key)) {
-            return priorityQueue.get(key);
+        int pos = priorityQueue.indexOf(key);
+        if (pos >= 0) {
+            return priorityQueue.valueAt(pos);
         } else {
             return 0.0f;
         }
     }
 
-    private float product(List<Feature> featureValues) {
+    private float product(int[] indices, float[] values, int start, int end) {
         float sum = 0.0f;
-        int i = 0;
-        while (i < featureValues.size()) {
-            Feature f = featureValues.get(i);
-            float Current_weight = getWeight(f.featureIndex);
-            sum += Current_weight * f.featureValue;
+        int i = start;
+        while (i < end) {
+            float Current_weight = getWeight(indices[i]);
+            sum += Current_weight * values[i];
             i++;
         }
         return sum * Measure;
     }
 
     @Override
-    public boolean Value_Prediction(List<Feature> featureValues) {
-        float score = product(featureValues) + modelBias;
+    public boolean Value_Prediction(int[] indices, float[] values, int start, int end) {
+        float score = product(indices, values, start, end) + modelBias;
         return score >= 0 ? true : false;
     }
 
     @Override
-    public boolean Internal_weiight_update(List<Feature> featureValues, boolean Given_Sign) {
-        float raw = product(featureValues);
+    public boolean Internal_weiight_update(int[] indices, float[] values, int start, int end, boolean Given_Sign) {
+        float raw = product(indices, values, start, end);
         float raw_model_score = raw + modelBias;
 
         int classifier_label = Given_Sign ? 1 : -1;
@@ -489,11 +1573,10 @@ public static class TruncatedModel implements TopKFeatures {
 
         float g = Helper_Function.logisticGrad(classifier_label * raw_model_score);
 
-        int j = 0;
-        while (j < featureValues.size()) {
-            Feature f = featureValues.get(j);
-            int key    = f.featureIndex;
-            float Adjusted_weight = scaledLearningRate * classifier_label * g * f.featureValue / Measure;
+        int j = start;
+        while (j < end) {
+            int key    = indices[j];
+            float Adjusted_weight = scaledLearningRate * classifier_label * g * values[j] / Measure;
             float priorWeight  = getWeight(key);
             float Updated_weight  = priorWeight - Adjusted_weight;
             priorityQueue.insertOrChange(key, Updated_weight);
@@ -517,215 +1600,966 @@ public static class TruncatedModel implements TopKFeatures {
     public static class LogisticSketch {
         private float modelBias;
         private float Measure;
-        private float[] modelWeights;
+        private CounterArray modelWeights;
         private int hashTableSize;
+        private int depth;
+        private HashFamily[] rowHashes;
+        private boolean medianUpdate;
+        private float[] rowEstimates;
     
         public LogisticSketch(int Width_of_table, int Deep_Size, int initial_Parameter,
                               float learningRateInitial, float regularizationFactor, boolean medianUpdate) {
+            this(Width_of_table, Deep_Size, initial_Parameter, learningRateInitial, regularizationFactor, medianUpdate, "murmur");
+        }
+
+        public LogisticSketch(int Width_of_table, int Deep_Size, int initial_Parameter,
+                              float learningRateInitial, float regularizationFactor, boolean medianUpdate,
+                              String hashFamily) {
+            this(Width_of_table, Deep_Size, initial_Parameter, learningRateInitial, regularizationFactor, medianUpdate,
+                 hashFamily, "float");
+        }
+
+        public LogisticSketch(int Width_of_table, int Deep_Size, int initial_Parameter,
+                              float learningRateInitial, float regularizationFactor, boolean medianUpdate,
+                              String hashFamily, String counterType) {
             int size = 1 << Width_of_table;
             this.hashTableSize = size;
-            this.modelWeights = new float[size];
+            this.depth = Math.max(1, Deep_Size);
+            this.modelWeights = CounterArray.create(counterType, depth * size, initial_Parameter);
             this.modelBias = 0.0f;
             this.Measure     = 1.0f;
+            this.medianUpdate = medianUpdate;
+            this.rowEstimates = new float[depth];
+    
+            // Independent index and sign hash per row, drawn from the run seed
+            Random rand = new Random(initial_Parameter);
+            this.rowHashes = new HashFamily[depth];
+            for (int row = 0; row < depth; row++) {
+                rowHashes[row] = HashFamily.forRow(hashFamily, rand, Width_of_table);
+            }
+        }
+    
+        private LogisticSketch(LogisticSketch source) {
+            this.modelBias = source.modelBias;
+            this.Measure = source.Measure;
+            this.modelWeights = source.modelWeights.copy();
+            this.hashTableSize = source.hashTableSize;
+            this.depth = source.depth;
+            this.rowHashes = source.rowHashes;
+            this.medianUpdate = source.medianUpdate;
+            this.rowEstimates = new float[depth];
+        }
+
+        private LogisticSketch(int hashTableSize, HashFamily[] rowHashes, CounterArray modelWeights,
+                               boolean medianUpdate, float modelBias, float Measure) {
+            this.modelBias = modelBias;
+            this.Measure = Measure;
+            this.modelWeights = modelWeights;
+            this.hashTableSize = hashTableSize;
+            this.depth = rowHashes.length;
+            this.rowHashes = rowHashes;
+            this.medianUpdate = medianUpdate;
+            this.rowEstimates = new float[depth];
         }
     
-        private int hashIndex(int featureIndex) {
-            int raw   = Integer.hashCode(featureIndex);
-            int abs   = Math.abs(raw);
-            return abs % hashTableSize;
+        public LogisticSketch copy() {
+            return new LogisticSketch(this);
         }
     
-        public boolean Value_Prediction(List<Feature> featureList) {
-            float sum = modelBias;
+        // this += factor * other; the sketch is linear, so this is the sketch of the summed weights
+        public void merge(LogisticSketch other, float factor) {
+            if (other.hashTableSize != hashTableSize || other.depth != depth
+                || !Arrays.equals(other.rowHashes, rowHashes)
+                || !other.modelWeights.type().equals(modelWeights.type())) {
+                throw new IllegalArgumentException("Cannot merge sketches with different shapes, hash seeds or counter types");
+            }
+            for (int i = 0; i < modelWeights.length(); i++) {
+                modelWeights.add(i, factor * other.modelWeights.get(i));
+            }
+            modelBias += factor * other.modelBias;
+        }
+    
+        public void scale(float factor) {
+            modelWeights.scale(factor);
+            modelBias *= factor;
+        }
+    
+        private int hashIndex(int row, int featureIndex) {
+            return row * hashTableSize + rowHashes[row].index(featureIndex);
+        }
+    
+        private float hashSign(int row, int featureIndex) {
+            return rowHashes[row].sign(featureIndex);
+        }
+    
+        private float estimate(int key, boolean median) {
+            return estimate(key, median, rowEstimates);
+        }
+
+        // Median (or mean) of the signed per-row counters for one key; scratch holds depth floats
+        private float estimate(int key, boolean median, float[] scratch) {
+            if (depth == 1) {
+                return hashSign(0, key) * modelWeights.get(hashIndex(0, key));
+            }
+            if (!median) {
+                float sum = 0.0f;
+                for (int row = 0; row < depth; row++) {
+                    sum += hashSign(row, key) * modelWeights.get(hashIndex(row, key));
+                }
+                return sum / depth;
+            }
+            for (int row = 0; row < depth; row++) {
+                float Current_weight = hashSign(row, key) * modelWeights.get(hashIndex(row, key));
+                int pos = row;
+                while (pos > 0 && scratch[pos - 1] > Current_weight) {
+                    scratch[pos] = scratch[pos - 1];
+                    pos--;
+                }
+                scratch[pos] = Current_weight;
+            }
+            int mid = depth / 2;
+            return (depth & 1) == 1
+                ? scratch[mid]
+                : 0.5f * (scratch[mid - 1] + scratch[mid]);
+        }
     
-            Iterator<Feature> it = featureList.iterator();
-            while (it.hasNext()) {
-                Feature f = it.next();
-                int weightIndex   = hashIndex(f.featureIndex);
-                float Current_weight   = modelWeights[weightIndex];
-                float pre_feature_value = Current_weight * f.featureValue;
-                sum += pre_feature_value;
+        private float margin(int[] indices, float[] values, int start, int end) {
+            float sum = modelBias;
+            for (int i = start; i < end; i++) {
+                sum += estimate(indices[i], medianUpdate) * values[i];
             }
+            return sum;
+        }
     
+        public boolean Value_Prediction(int[] indices, float[] values, int start, int end) {
+            float sum = margin(indices, values, start, end);
             return sum >= 0 ? true : false;
         }
     
-        public boolean Internal_weiight_update(float[] updatedWeights, List<Feature> featureList, boolean Given_Sign) {
+        public boolean Internal_weiight_update(int[] indices, float[] values, int start, int end, boolean Given_Sign) {
             int classifier_label = Given_Sign ? 1 : -1;
     
-            float raw_model_score = modelBias;
-            Iterator<Feature> it1 = featureList.iterator();
-            while (it1.hasNext()) {
-                Feature f = it1.next();
-                int weightIndex = hashIndex(f.featureIndex);
-                float Current_weight = modelWeights[weightIndex];
-                float pre_feature_value = Current_weight * f.featureValue;
-                raw_model_score += pre_feature_value;
-            }
+            float raw_model_score = margin(indices, values, start, end);
     
             float yZ   = classifier_label * raw_model_score;
             float Gradient = Helper_Function.logisticGrad(yZ);
             float scaledLearningRate   = 0.1f;
     
-            Iterator<Feature> it2 = featureList.iterator();
-            while (it2.hasNext()) {
-                Feature f = it2.next();
-                int weightIndex = hashIndex(f.featureIndex);
-                float priorWeight = modelWeights[weightIndex];
-                float Adjusted_weight = scaledLearningRate * Gradient * classifier_label * f.featureValue;
-                float Updated_weight  = priorWeight - Adjusted_weight;
-                modelWeights[weightIndex] = Updated_weight;
+            for (int i = start; i < end; i++) {
+                float Adjusted_weight = scaledLearningRate * Gradient * classifier_label * values[i];
+                for (int row = 0; row < depth; row++) {
+                    int weightIndex = hashIndex(row, indices[i]);
+                    modelWeights.add(weightIndex, -hashSign(row, indices[i]) * Adjusted_weight);
+                }
             }
     
-            int i = 0;
-            while (i < hashTableSize) {
-                updatedWeights[i] = modelWeights[i];
-                i++;
-            }
+            return Value_Prediction(indices, values, start, end);
+        }
     
-            return Value_Prediction(featureList);
+        // Margins for every row come first (all against the pre-batch table); the per-feature
+        // steps are summed in accumulator so each distinct feature is hashed and written once
+        public void Internal_weiight_update(CsrDataset batch, int firstRow, int lastRow, SparseAccumulator accumulator) {
+            float scaledLearningRate   = 0.1f;
+            accumulator.clear();
+            for (int row = firstRow; row < lastRow; row++) {
+                int start = batch.rowStart(row);
+                int end = batch.rowEnd(row);
+                int classifier_label = batch.label(row) ? 1 : -1;
+                float raw_model_score = margin(batch.indices, batch.values, start, end);
+                float step = scaledLearningRate * classifier_label
+                           * Helper_Function.logisticGrad(classifier_label * raw_model_score);
+                for (int i = start; i < end; i++) {
+                    accumulator.add(batch.indices[i], step * batch.values[i]);
+                }
+            }
+            for (int i = 0; i < accumulator.size(); i++) {
+                int key = accumulator.keyAt(i);
+                float Adjusted_weight = accumulator.sumAt(i);
+                for (int row = 0; row < depth; row++) {
+                    modelWeights.add(hashIndex(row, key), -hashSign(row, key) * Adjusted_weight);
+                }
+            }
         }
     
         public void Internal_weiight_update(int key, float Adjusted_weight) {
-            int weightIndex    = hashIndex(key);
-            float priorWeight = modelWeights[weightIndex];
-            float Updated_weight = priorWeight + Adjusted_weight;
-            modelWeights[weightIndex] = Updated_weight;
+            for (int row = 0; row < depth; row++) {
+                int weightIndex = hashIndex(row, key);
+                modelWeights.add(weightIndex, hashSign(row, key) * Adjusted_weight);
+            }
         }
     
         public float Measure() {
             return Measure;
         }
+
+        public MemoryFootprint memoryFootprint() {
+            long hashBytes = MemoryFootprint.arrayBytes(rowHashes.length, 4);
+            for (HashFamily hash : rowHashes) {
+                hashBytes += hash.memoryBytes();
+            }
+            return new MemoryFootprint(modelWeights.memoryBytes(), 0,
+                MemoryFootprint.aligned(MemoryFootprint.OBJECT_HEADER + 28) + hashBytes
+                    + MemoryFootprint.arrayBytes(rowEstimates.length, 4));
+        }
     
         public float Learning_b() {
             return modelBias;
         }
     
-        public float get(int key) {
-            int weightIndex = hashIndex(key);
-            return modelWeights[weightIndex];
+        public int size() {
+            return modelWeights.length();
         }
-    }
-    
 
-    public static class Heap {
-        public int capacity;
-        private PriorityQueue<Pair> pq;
-        private Map<Integer, Float> map;
-    
-        public Heap(int capacity) {
-            this.capacity = capacity;
-            this.map = new HashMap<>();
-            this.pq = new PriorityQueue<>(
-                new Comparator<Pair>() {
-                    @Override
-                    public int compare(Pair a, Pair b) {
-                        return Double.compare(
-                            Math.abs(a.featureValue),
-                            Math.abs(b.featureValue)
-                        );
-                    }
-                }
-            );
+        public void writeSnapshot(ModelSnapshot.Writer out) throws IOException {
+            out.putInt(Integer.numberOfTrailingZeros(hashTableSize));
+            out.putInt(depth);
+            out.putByte(medianUpdate ? 1 : 0);
+            out.putFloat(modelBias);
+            out.putFloat(Measure);
+            out.putString(rowHashes[0].name());
+            for (HashFamily hash : rowHashes) {
+                hash.writeSnapshot(out);
+            }
+            modelWeights.writeSnapshot(out);
         }
-    
-        public boolean contains(int key) {
-            return map.containsKey(key);
+
+        static LogisticSketch readSnapshot(ModelSnapshot.Reader in) throws IOException {
+            int log2Width = in.getInt();
+            int depth = in.getInt();
+            boolean medianUpdate = in.getByte() != 0;
+            float modelBias = in.getFloat();
+            float Measure = in.getFloat();
+            if (log2Width < 0 || log2Width > 30 || depth < 1) {
+                throw new IOException("Corrupt sketch shape in model snapshot");
+            }
+            String hashFamily = in.getString();
+            HashFamily[] rowHashes = new HashFamily[depth];
+            for (int row = 0; row < depth; row++) {
+                rowHashes[row] = HashFamily.readSnapshot(hashFamily, in, log2Width);
+            }
+            CounterArray modelWeights = CounterArray.readSnapshot(in);
+            if (modelWeights.length() != (long) depth << log2Width) {
+                throw new IOException("Sketch table size does not match its shape in model snapshot");
+            }
+            return new LogisticSketch(1 << log2Width, rowHashes, modelWeights, medianUpdate, modelBias, Measure);
         }
     
         public float get(int key) {
-            return map.get(key);
+            return estimate(key, true);
         }
-    
-        public void changeVal(int key, float featureValue) {
-            if (map.containsKey(key)) {
-                map.put(key, featureValue);
-                rebuildPQ();
-            }
+
+        // Read-only, so threads can share a sketch as long as each passes its own scratch
+        public float get(int key, float[] scratch) {
+            return estimate(key, true, scratch);
         }
+    }
     
-        public void insertOrChange(int key, float featureValue) {
-            if (map.containsKey(key)) {
-                map.put(key, featureValue);
-                return;
-            }
-    
-            if (map.size() < capacity) {
-                map.put(key, featureValue);
-                return;
+
+    // Storage for the sketch counters. Reduced-precision variants fit 2x or 4x the counters in
+    // the same bytes, trading per-counter precision for fewer collisions.
+    public interface CounterArray {
+        float get(int i);
+        void add(int i, float delta);
+        void scale(float factor);
+        int length();
+        CounterArray copy();
+        long memoryBytes();
+        String type();
+        // type | int8 step and rounding state | length | padding to 8 | raw counters | padding to 8
+        void writeSnapshot(ModelSnapshot.Writer out) throws IOException;
+
+        String[] TYPES = {"float", "half", "int8"};
+
+        static int bytesPerCounter(String type) {
+            switch (type) {
+                case "half":
+                    return 2;
+                case "int8":
+                    return 1;
+                default:
+                    return 4;
             }
-    
-            float minAbs = Float.MAX_VALUE;
-            int minKey   = -1;
-            Iterator<Map.Entry<Integer, Float>> entryIter = map.entrySet().iterator();
-            while (entryIter.hasNext()) {
-                Map.Entry<Integer, Float> entry = entryIter.next();
-                float absVal = Math.abs(entry.getValue());
-                if (absVal < minAbs) {
-                    minAbs = absVal;
-                    minKey  = entry.getKey();
-                }
+        }
+
+        static CounterArray create(String type, int length, long seed) {
+            if ((long) length * bytesPerCounter(type) > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("A " + type + " counter table of " + length + " counters is over 2 GB");
             }
-    
-            if (Math.abs(featureValue) > minAbs) {
-                map.remove(minKey);
-                map.put(key, featureValue);
+            switch (type) {
+                case "float":
+                    return new FloatCounters(length);
+                case "half":
+                    return new HalfCounters(length);
+                case "int8":
+                    return new Int8Counters(length, seed);
+                default:
+                    throw new IllegalArgumentException("Unknown counter type " + type);
             }
         }
-    
-        public Optional<Pair> insert(int key, float featureValue) {
-            if (map.containsKey(key)) {
-                changeVal(key, featureValue);
-                return Optional.empty();
+
+        // The table is used in place from the mapping
+        static CounterArray readSnapshot(ModelSnapshot.Reader in) throws IOException {
+            String type = in.getString();
+            if (!Arrays.asList(TYPES).contains(type)) {
+                throw new IOException("Unknown counter type " + type + " in model snapshot");
             }
-    
-            if (map.size() < capacity) {
-                map.put(key, featureValue);
-                pq.add(new Pair(key, featureValue));
-                return Optional.empty();
+            float step = 0;
+            int rngState = 0;
+            if (type.equals("int8")) {
+                step = in.getFloat();
+                rngState = in.getInt();
             }
-    
-            Pair smallest = pq.peek();
-            if (Math.abs(featureValue) > Math.abs(smallest.featureValue)) {
-                pq.poll();
-                map.remove(smallest.key);
-                map.put(key, featureValue);
-                pq.add(new Pair(key, featureValue));
-                return Optional.of(smallest);
-            } else {
-                return Optional.empty();
+            int length = in.getInt();
+            in.align();
+            ByteBuffer mapped = in.map((long) length * bytesPerCounter(type));
+            if (mapped == null) {
+                throw new IOException("Counter table of " + length + " " + type + " counters is over 2 GB");
+            }
+            in.align();
+            switch (type) {
+                case "float":
+                    return new FloatCounters(mapped, length);
+                case "half":
+                    return new HalfCounters(mapped, length);
+                default:
+                    return new Int8Counters(mapped, length, step, rngState);
             }
         }
-    
-        public List<Integer> keys() {
-            return new ArrayList<>(map.keySet());
+
+        // The whole table, for writing, without moving the position of the original
+        static ByteBuffer whole(ByteBuffer counters) {
+            ByteBuffer all = counters.duplicate();
+            all.clear();
+            return all;
         }
-    
-        public Map<Integer, Float> getMap() {
-            return map;
+
+        // Copies come back on the heap, whatever backs the original
+        static ByteBuffer heapCopy(ByteBuffer counters) {
+            ByteBuffer copy = ByteBuffer.allocate(counters.capacity());
+            copy.put(whole(counters));
+            return copy;
         }
-    
-        private void rebuildPQ() {
-            pq.clear();
-            Iterator<Map.Entry<Integer, Float>> iter = map.entrySet().iterator();
-            while (iter.hasNext()) {
-                Map.Entry<Integer, Float> entry = iter.next();
-                pq.add(new Pair(entry.getKey(), entry.getValue()));
+
+        // Mapped pages are not on the Java heap, but they are resident once the sketch is touched;
+        // a heap buffer is a HeapByteBuffer object plus its backing array
+        static long bufferBytes(ByteBuffer counters) {
+            if (counters.isDirect()) {
+                return counters.capacity();
             }
+            return MemoryFootprint.aligned(MemoryFootprint.OBJECT_HEADER + 44) + MemoryFootprint.arrayBytes(counters.capacity(), 1);
         }
-    
-        public List<Pair> items() {
-            rebuildPQ();
-            List<Pair> items = new ArrayList<>();
-            Iterator<Map.Entry<Integer, Float>> it = map.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<Integer, Float> entry = it.next();
-                items.add(new Pair(entry.getKey(), entry.getValue()));
+    }
+
+    // Every encoding keeps its counters in a little-endian ByteBuffer: a heap buffer for a new
+    // model, or the table of a restored snapshot used in place from the mapping. The mapping is
+    // private, so updates after a restore stay in this process and never reach the file; a
+    // read-only mapping can score but throws on update.
+    public static class FloatCounters implements CounterArray {
+        private final ByteBuffer counters;
+        private final int length;
+
+        public FloatCounters(int length) {
+            this(ByteBuffer.allocate(length * 4), length);
+        }
+
+        FloatCounters(ByteBuffer counters, int length) {
+            this.counters = counters.order(ByteOrder.LITTLE_ENDIAN);
+            this.length = length;
+        }
+
+        public float get(int i) {
+            return counters.getFloat(i << 2);
+        }
+
+        public void add(int i, float delta) {
+            counters.putFloat(i << 2, counters.getFloat(i << 2) + delta);
+        }
+
+        public void scale(float factor) {
+            for (int i = 0; i < length; i++) {
+                counters.putFloat(i << 2, counters.getFloat(i << 2) * factor);
             }
-            return items;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public CounterArray copy() {
+            return new FloatCounters(CounterArray.heapCopy(counters), length);
+        }
+
+        public long memoryBytes() {
+            return MemoryFootprint.aligned(MemoryFootprint.OBJECT_HEADER + 8) + CounterArray.bufferBytes(counters);
+        }
+
+        public String type() {
+            return "float";
+        }
+
+        public void writeSnapshot(ModelSnapshot.Writer out) throws IOException {
+            out.putString(type());
+            out.putInt(length);
+            out.align();
+            out.putBuffer(CounterArray.whole(counters));
+            out.align();
         }
     }
-    
+
+    // IEEE 754 binary16, rounded to nearest even and saturated at +-65504
+    public static class HalfCounters implements CounterArray {
+        private static final int MAX_HALF = 0x7bff;
+        private final ByteBuffer counters;
+        private final int length;
+
+        public HalfCounters(int length) {
+            this(ByteBuffer.allocate(length * 2), length);
+        }
+
+        HalfCounters(ByteBuffer counters, int length) {
+            this.counters = counters.order(ByteOrder.LITTLE_ENDIAN);
+            this.length = length;
+        }
+
+        public float get(int i) {
+            return toFloat(counters.getShort(i << 1));
+        }
+
+        public void add(int i, float delta) {
+            counters.putShort(i << 1, toHalf(toFloat(counters.getShort(i << 1)) + delta));
+        }
+
+        public void scale(float factor) {
+            for (int i = 0; i < length; i++) {
+                counters.putShort(i << 1, toHalf(toFloat(counters.getShort(i << 1)) * factor));
+            }
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public CounterArray copy() {
+            return new HalfCounters(CounterArray.heapCopy(counters), length);
+        }
+
+        public long memoryBytes() {
+            return MemoryFootprint.aligned(MemoryFootprint.OBJECT_HEADER + 8) + CounterArray.bufferBytes(counters);
+        }
+
+        public String type() {
+            return "half";
+        }
+
+        public void writeSnapshot(ModelSnapshot.Writer out) throws IOException {
+            out.putString(type());
+            out.putInt(length);
+            out.align();
+            out.putBuffer(CounterArray.whole(counters));
+            out.align();
+        }
+
+        public static float toFloat(short half) {
+            int sign = (half & 0x8000) << 16;
+            int exponent = (half >>> 10) & 0x1f;
+            int mantissa = half & 0x3ff;
+            if (exponent == 0) {
+                float subnormal = mantissa * 0x1p-24f;
+                return sign == 0 ? subnormal : -subnormal;
+            }
+            if (exponent == 31) {
+                return mantissa == 0 ? Float.intBitsToFloat(sign | 0x7f800000) : Float.NaN;
+            }
+            return Float.intBitsToFloat(sign | (exponent + 112) << 23 | mantissa << 13);
+        }
+
+        public static short toHalf(float value) {
+            int bits = Float.floatToRawIntBits(value);
+            int sign = (bits >>> 16) & 0x8000;
+            int abs = bits & 0x7fffffff;
+            if (abs > 0x7f800000) {
+                return (short) 0x7e00;
+            }
+            int half;
+            if (abs < 0x38800000) {
+                // Below the smallest normal half: a multiple of 2^-24, and 1024 encodes 2^-14 itself
+                half = (int) Math.rint(Float.intBitsToFloat(abs) * 0x1p24f);
+            } else {
+                int mantissa = abs & 0x7fffff;
+                half = ((abs >>> 23) - 112) << 10 | mantissa >>> 13;
+                int rest = mantissa & 0x1fff;
+                if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0)) {
+                    half++;
+                }
+                if (half > MAX_HALF) {
+                    half = MAX_HALF;
+                }
+            }
+            return (short) (sign | half);
+        }
+    }
+
+    // Signed bytes times one shared power-of-two step. Adds round stochastically, so small
+    // gradient steps are kept in expectation instead of vanishing; when a counter would leave
+    // [-127, 127] the step doubles and every counter is halved (again with stochastic rounding).
+    public static class Int8Counters implements CounterArray {
+        private static final float INITIAL_STEP = 0x1p-10f;
+        private final ByteBuffer counters;
+        private final int length;
+        private float step;
+        private int rngState;
+
+        public Int8Counters(int length, long seed) {
+            this(ByteBuffer.allocate(length), length, INITIAL_STEP, Helper_Function.mix((int) seed ^ (int) (seed >>> 32)) | 1);
+        }
+
+        Int8Counters(ByteBuffer counters, int length, float step, int rngState) {
+            this.counters = counters;
+            this.length = length;
+            this.step = step;
+            this.rngState = rngState;
+        }
+
+        public float get(int i) {
+            return counters.get(i) * step;
+        }
+
+        public void add(int i, float delta) {
+            float target = counters.get(i) + delta / step;
+            while (!(Math.abs(target) <= 127.0f) && step < 0x1p100f) {
+                rescale();
+                target = counters.get(i) + delta / step;
+            }
+            counters.put(i, (byte) Math.max(-127, Math.min(127, stochasticRound(target))));
+        }
+
+        // Folded into the step; the counters are only rewritten if the step drifts far from
+        // where it started, which keeps decay-by-scaling from losing resolution
+        public void scale(float factor) {
+            if (factor < 0) {
+                for (int i = 0; i < length; i++) {
+                    counters.put(i, (byte) -counters.get(i));
+                }
+                factor = -factor;
+            }
+            step *= factor;
+            if (step < INITIAL_STEP * 0x1p-20f) {
+                float ratio = step / INITIAL_STEP;
+                for (int i = 0; i < length; i++) {
+                    counters.put(i, (byte) stochasticRound(counters.get(i) * ratio));
+                }
+                step = INITIAL_STEP;
+            }
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public CounterArray copy() {
+            return new Int8Counters(CounterArray.heapCopy(counters), length, step, rngState);
+        }
+
+        public long memoryBytes() {
+            return MemoryFootprint.aligned(MemoryFootprint.OBJECT_HEADER + 16) + CounterArray.bufferBytes(counters);
+        }
+
+        public String type() {
+            return "int8";
+        }
+
+        public void writeSnapshot(ModelSnapshot.Writer out) throws IOException {
+            out.putString(type());
+            out.putFloat(step);
+            out.putInt(rngState);
+            out.putInt(length);
+            out.align();
+            out.putBuffer(CounterArray.whole(counters));
+            out.align();
+        }
+
+        private void rescale() {
+            step *= 2;
+            for (int i = 0; i < length; i++) {
+                counters.put(i, (byte) stochasticRound(counters.get(i) * 0.5f));
+            }
+        }
+
+        private int stochasticRound(float x) {
+            rngState = xorshift(rngState);
+            return stochasticRound(x, rngState);
+        }
+
+        static int xorshift(int rng) {
+            rng ^= rng << 13;
+            rng ^= rng >>> 17;
+            rng ^= rng << 5;
+            return rng;
+        }
+
+        // floor(x) plus one with probability frac(x), given the next xorshift32 value
+        static int stochasticRound(float x, int rng) {
+            float floor = (float) Math.floor(x);
+            float uniform = (rng >>> 8) * 0x1p-24f;
+            return (int) floor + (uniform < x - floor ? 1 : 0);
+        }
+    }
+
+    // Sums float deltas per int key with no per-key allocation; keys iterate in first-touch order
+    public static class SparseAccumulator {
+        private int[] keys;
+        private float[] sums;
+        private int size;
+        // Open-addressing index, linear probing: position + 1, 0 = empty
+        private int[] slots;
+        private int slotMask;
+    
+        public SparseAccumulator(int expectedKeys) {
+            int tableSize = Integer.highestOneBit(Math.max(2, expectedKeys) * 2 - 1) << 1;
+            this.keys = new int[tableSize / 2];
+            this.sums = new float[tableSize / 2];
+            this.slots = new int[tableSize];
+            this.slotMask = tableSize - 1;
+        }
+    
+        public void add(int key, float delta) {
+            int slot = Helper_Function.mix(key) & slotMask;
+            int pos;
+            while ((pos = slots[slot]) != 0) {
+                if (keys[pos - 1] == key) {
+                    sums[pos - 1] += delta;
+                    return;
+                }
+                slot = (slot + 1) & slotMask;
+            }
+            if (size == keys.length) {
+                grow();
+                add(key, delta);
+                return;
+            }
+            keys[size] = key;
+            sums[size] = delta;
+            slots[slot] = ++size;
+        }
+    
+        public int size() {
+            return size;
+        }
+    
+        public int keyAt(int i) {
+            return keys[i];
+        }
+    
+        public float sumAt(int i) {
+            return sums[i];
+        }
+
+        public long memoryBytes() {
+            return MemoryFootprint.aligned(MemoryFootprint.OBJECT_HEADER + 20)
+                 + MemoryFootprint.arrayBytes(keys.length, 4) + MemoryFootprint.arrayBytes(sums.length, 4)
+                 + MemoryFootprint.arrayBytes(slots.length, 4);
+        }
+    
+        public void clear() {
+            if (size > 0) {
+                Arrays.fill(slots, 0);
+                size = 0;
+            }
+        }
+    
+        private void grow() {
+            int tableSize = slots.length * 2;
+            keys = Arrays.copyOf(keys, tableSize / 2);
+            sums = Arrays.copyOf(sums, tableSize / 2);
+            slots = new int[tableSize];
+            slotMask = tableSize - 1;
+            for (int pos = 0; pos < size; pos++) {
+                int slot = Helper_Function.mix(keys[pos]) & slotMask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & slotMask;
+                }
+                slots[slot] = pos + 1;
+            }
+        }
+    }
+    
+    // Indexed binary min-heap on |value|, with a key -> heap position index
+    public static class Heap {
+        public int capacity;
+        private int size;
+        private int[] heapKeys;
+        private float[] heapValues;
+        // Open-addressing index, linear probing: (key << 32) | (position + 1), 0 = empty
+        private long[] slots;
+        private int slotMask;
+    
+        public Heap(int capacity) {
+            this.capacity = capacity;
+            this.size = 0;
+            this.heapKeys = new int[capacity];
+            this.heapValues = new float[capacity];
+            int tableSize = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+            this.slots = new long[tableSize];
+            this.slotMask = tableSize - 1;
+        }
+    
+        public boolean contains(int key) {
+            return findSlot(key) >= 0;
+        }
+    
+        public float get(int key) {
+            return heapValues[indexOf(key)];
+        }
+    
+        // Heap position of key, or -1 when it is not in the active set
+        public int indexOf(int key) {
+            int slot = findSlot(key);
+            return slot < 0 ? -1 : (int) slots[slot] - 1;
+        }
+    
+        public int size() {
+            return size;
+        }
+    
+        public Heap copy() {
+            Heap copy = new Heap(0);
+            copy.capacity = capacity;
+            copy.size = size;
+            copy.heapKeys = heapKeys.clone();
+            copy.heapValues = heapValues.clone();
+            copy.slots = slots.clone();
+            copy.slotMask = slotMask;
+            return copy;
+        }
+    
+        public int keyAt(int pos) {
+            return heapKeys[pos];
+        }
+
+        // Keys, values and the position index, all allocated for the full capacity
+        public long memoryBytes() {
+            return MemoryFootprint.aligned(MemoryFootprint.OBJECT_HEADER + 24)
+                 + MemoryFootprint.arrayBytes(heapKeys.length, 4) + MemoryFootprint.arrayBytes(heapValues.length, 4)
+                 + MemoryFootprint.arrayBytes(slots.length, 8);
+        }
+
+        // Keys and values in heap order, so a restore rebuilds only the position index
+        public void writeSnapshot(ModelSnapshot.Writer out) throws IOException {
+            out.putInt(capacity);
+            out.putInt(size);
+            out.putInts(heapKeys, size);
+            out.putFloats(heapValues, size);
+        }
+
+        static Heap readSnapshot(ModelSnapshot.Reader in) throws IOException {
+            int capacity = in.getInt();
+            int size = in.getInt();
+            if (capacity < 0 || size < 0 || size > capacity) {
+                throw new IOException("Corrupt active set in model snapshot");
+            }
+            Heap heap = new Heap(capacity);
+            int[] keys = in.getInts(size);
+            float[] values = in.getFloats(size);
+            for (int pos = 0; pos < size; pos++) {
+                heap.heapKeys[pos] = keys[pos];
+                heap.heapValues[pos] = values[pos];
+                heap.addSlot(keys[pos], pos);
+            }
+            heap.size = size;
+            return heap;
+        }
+    
+        public float valueAt(int pos) {
+            return heapValues[pos];
+        }
+    
+        // Smallest |value| in the heap, i.e. the bar a new key must clear once full
+        public float minAbs() {
+            return size == 0 ? Float.MAX_VALUE : Math.abs(heapValues[0]);
+        }
+    
+        public boolean admits(float featureValue) {
+            return size < capacity || Math.abs(featureValue) > minAbs();
+        }
+    
+        public void changeVal(int key, float featureValue) {
+            int pos = indexOf(key);
+            if (pos >= 0) {
+                update(pos, featureValue);
+            }
+        }
+    
+        public void insertOrChange(int key, float featureValue) {
+            insert(key, featureValue);
+        }
+    
+        public Optional<Pair> insert(int key, float featureValue) {
+            int pos = indexOf(key);
+            if (pos >= 0) {
+                update(pos, featureValue);
+                return Optional.empty();
+            }
+    
+            if (size < capacity) {
+                heapKeys[size] = key;
+                heapValues[size] = featureValue;
+                addSlot(key, size);
+                size++;
+                siftUp(size - 1);
+                return Optional.empty();
+            }
+    
+            if (!admits(featureValue)) {
+                return Optional.empty();
+            }
+            Pair smallest = new Pair(heapKeys[0], heapValues[0]);
+            removeSlot(findSlot(smallest.key));
+            heapKeys[0] = key;
+            heapValues[0] = featureValue;
+            addSlot(key, 0);
+            siftDown(0);
+            return Optional.of(smallest);
+        }
+    
+        public Pair peekMin() {
+            return size == 0 ? null : new Pair(heapKeys[0], heapValues[0]);
+        }
+    
+        public Optional<Pair> pollMin() {
+            if (size == 0) {
+                return Optional.empty();
+            }
+            Pair smallest = new Pair(heapKeys[0], heapValues[0]);
+            removeSlot(findSlot(smallest.key));
+            size--;
+            if (size > 0) {
+                move(size, 0);
+                siftDown(0);
+            }
+            return Optional.of(smallest);
+        }
+    
+        public List<Integer> keys() {
+            List<Integer> keys = new ArrayList<>(size);
+            for (int pos = 0; pos < size; pos++) {
+                keys.add(heapKeys[pos]);
+            }
+            return keys;
+        }
+    
+        public List<Pair> items() {
+            List<Pair> items = new ArrayList<>(size);
+            for (int pos = 0; pos < size; pos++) {
+                items.add(new Pair(heapKeys[pos], heapValues[pos]));
+            }
+            return items;
+        }
+    
+        private void update(int pos, float featureValue) {
+            float prior = Math.abs(heapValues[pos]);
+            heapValues[pos] = featureValue;
+            if (Math.abs(featureValue) < prior) {
+                siftUp(pos);
+            } else {
+                siftDown(pos);
+            }
+        }
+    
+        private void siftUp(int pos) {
+            int key = heapKeys[pos];
+            float featureValue = heapValues[pos];
+            float absVal = Math.abs(featureValue);
+            while (pos > 0) {
+                int parent = (pos - 1) >>> 1;
+                if (Math.abs(heapValues[parent]) <= absVal) {
+                    break;
+                }
+                move(parent, pos);
+                pos = parent;
+            }
+            place(pos, key, featureValue);
+        }
+    
+        private void siftDown(int pos) {
+            int key = heapKeys[pos];
+            float featureValue = heapValues[pos];
+            float absVal = Math.abs(featureValue);
+            int half = size >>> 1;
+            while (pos < half) {
+                int child = 2 * pos + 1;
+                int right = child + 1;
+                if (right < size && Math.abs(heapValues[right]) < Math.abs(heapValues[child])) {
+                    child = right;
+                }
+                if (absVal <= Math.abs(heapValues[child])) {
+                    break;
+                }
+                move(child, pos);
+                pos = child;
+            }
+            place(pos, key, featureValue);
+        }
+    
+        private void move(int from, int to) {
+            place(to, heapKeys[from], heapValues[from]);
+        }
+    
+        private void place(int pos, int key, float featureValue) {
+            heapKeys[pos] = key;
+            heapValues[pos] = featureValue;
+            slots[findSlot(key)] = entry(key, pos);
+        }
+    
+        private static long entry(int key, int pos) {
+            return ((long) key << 32) | (pos + 1);
+        }
+    
+        private int homeSlot(int key) {
+            return Helper_Function.mix(key) & slotMask;
+        }
+    
+        private int findSlot(int key) {
+            int slot = homeSlot(key);
+            long e;
+            while ((e = slots[slot]) != 0) {
+                if ((int) (e >>> 32) == key) {
+                    return slot;
+                }
+                slot = (slot + 1) & slotMask;
+            }
+            return -1;
+        }
+    
+        private void addSlot(int key, int pos) {
+            int slot = homeSlot(key);
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & slotMask;
+            }
+            slots[slot] = entry(key, pos);
+        }
+    
+        // Backward-shift deletion, so the probe chains never need tombstones
+        private void removeSlot(int hole) {
+            int next = hole;
+            while (true) {
+                next = (next + 1) & slotMask;
+                long e = slots[next];
+                if (e == 0) {
+                    break;
+                }
+                int home = homeSlot((int) (e >>> 32));
+                boolean homeInRange = hole <= next
+                    ? (home > hole && home <= next)
+                    : (home > hole || home <= next);
+                if (!homeInRange) {
+                    slots[hole] = e;
+                    hole = next;
+                }
+            }
+            slots[hole] = 0;
+        }
+    }
+    
     // PMI Implementation
     public static class PMI implements TopKFeatures {
         private int dimensionality;
@@ -735,6 +2569,8 @@ public static class TruncatedModel implements TopKFeatures {
         private long iterationCount;
         private float modelBias;
         private float[] modelWeights;
+        // Lazy L2 as in UncompressedLogisticRegression: real weights are modelWeights * Measure
+        private float Measure;
         private double smooth;
         private Map<Integer, Integer> positiveFeatureCounts;
         private Map<Integer, Integer> negativeFeatureCounts;
@@ -749,6 +2585,7 @@ public static class TruncatedModel implements TopKFeatures {
             this.iterationCount          = 1;
             this.modelBias               = 0.0f;
             this.modelWeights            = new float[dimensionality];
+            this.Measure                 = 1.0f;
             this.smooth                  = 1.0;
             this.positiveFeatureCounts   = new HashMap<>();
             this.negativeFeatureCounts   = new HashMap<>();
@@ -756,15 +2593,24 @@ public static class TruncatedModel implements TopKFeatures {
             this.totalNegativeExamples   = 0;
         }
     
-        private float product(List<Feature> featureList) {
-            float sum = modelBias;
-            for (Feature f : featureList) {
-                int weightIndex = f.featureIndex;
+        private float product(int[] indices, float[] values, int start, int end) {
+            float sum = 0.0f;
+            for (int i = start; i < end; i++) {
+                int weightIndex = indices[i];
                 if (weightIndex < modelWeights.length) {
-                    sum += modelWeights[weightIndex] * f.featureValue;
+                    sum += modelWeights[weightIndex] * values[i];
                 }
             }
-            return sum;
+            return sum * Measure + modelBias;
+        }
+    
+        private void ensureDimension(int featureIndex) {
+            if (featureIndex >= modelWeights.length) {
+                modelWeights = Arrays.copyOf(modelWeights, Math.max(featureIndex + 1, modelWeights.length * 2));
+            }
+            if (featureIndex >= dimensionality) {
+                dimensionality = featureIndex + 1;
+            }
         }
     
         private double computePMI(int featureIndex, boolean Given_Sign) {
@@ -787,167 +2633,2031 @@ public static class TruncatedModel implements TopKFeatures {
             if (featureProb <= 0 || featureGivenLabelProb <= 0) {
                 return 0.0;
             }
-            return Math.log(featureGivenLabelProb / featureProb);
+            return Math.log(featureGivenLabelProb / featureProb);
+        }
+    
+        @Override
+        public boolean Value_Prediction(int[] indices, float[] values, int start, int end) {
+            float raw_model_score = product(indices, values, start, end);
+            return raw_model_score >= 0;
+        }
+    
+        @Override
+        public boolean Internal_weiight_update(int[] indices, float[] values, int start, int end, boolean Given_Sign) {
+            if (Given_Sign) {
+                totalPositiveExamples++;
+            } else {
+                totalNegativeExamples++;
+            }
+            for (int i = start; i < end; i++) {
+                int weightIndex = indices[i];
+                if (Given_Sign) {
+                    positiveFeatureCounts.put(weightIndex, positiveFeatureCounts.getOrDefault(weightIndex, 0) + 1);
+                } else {
+                    negativeFeatureCounts.put(weightIndex, negativeFeatureCounts.getOrDefault(weightIndex, 0) + 1);
+                }
+            }
+    
+            int classifier_label = Given_Sign ? 1 : -1;
+            float raw_model_score = product(indices, values, start, end);
+            float Gradient = Helper_Function.logisticGrad(classifier_label * raw_model_score);
+            float scaledLearningRate = learningRateInitial / (1.0f + learningRateInitial * regularizationFactor * iterationCount);
+            Measure = Measure * (1 - scaledLearningRate * regularizationFactor);
+            if (Measure < UncompressedLogisticRegression.MIN_MEASURE) {
+                for (int i = 0; i < dimensionality; i++) {
+                    modelWeights[i] *= Measure;
+                }
+                Measure = 1.0f;
+            }
+            for (int i = start; i < end; i++) {
+                int weightIndex = indices[i];
+                ensureDimension(weightIndex);
+                modelWeights[weightIndex] -= scaledLearningRate * classifier_label * Gradient * values[i] / Measure;
+            }
+            modelBias -= scaledLearningRate * classifier_label * Gradient;
+            iterationCount++;
+            return raw_model_score >= 0;
+        }
+    
+        // Each HashMap entry is a 32-byte node plus a 4-byte table slot at load <= 0.75. The key
+        // and the count are boxed Integers of 16 bytes each, unless they fall in -128..127, where
+        // Integer.valueOf hands out the shared cached instances
+        @Override
+        public MemoryFootprint memoryFootprint() {
+            long countBytes = 0;
+            for (Map<Integer, Integer> counts : Arrays.asList(positiveFeatureCounts, negativeFeatureCounts)) {
+                countBytes += MemoryFootprint.aligned(MemoryFootprint.OBJECT_HEADER + 36);
+                for (Map.Entry<Integer, Integer> entry : counts.entrySet()) {
+                    countBytes += 32 + boxedBytes(entry.getKey()) + boxedBytes(entry.getValue());
+                }
+                countBytes += MemoryFootprint.arrayBytes(Integer.highestOneBit(Math.max(1, (int) (counts.size() / 0.75f)) * 2 - 1), 4);
+            }
+            return new MemoryFootprint(MemoryFootprint.arrayBytes(modelWeights.length, 4) + countBytes, 0,
+                MemoryFootprint.aligned(MemoryFootprint.OBJECT_HEADER + 64));
+        }
+
+        private static long boxedBytes(int value) {
+            return value >= -128 && value <= 127 ? 0 : 16;
+        }
+
+        @Override
+        public void writeSnapshot(ModelSnapshot.Writer out) throws IOException {
+            out.putInt(dimensionality);
+            out.putInt(topKFeatures);
+            out.putFloat(learningRateInitial);
+            out.putFloat(regularizationFactor);
+            out.putFloat(modelBias);
+            out.putFloat(Measure);
+            out.putLong(iterationCount);
+            out.putDouble(smooth);
+            out.putInt(totalPositiveExamples);
+            out.putInt(totalNegativeExamples);
+            out.putFloats(modelWeights, dimensionality);
+            for (Map<Integer, Integer> counts : Arrays.asList(positiveFeatureCounts, negativeFeatureCounts)) {
+                out.putInt(counts.size());
+                for (Map.Entry<Integer, Integer> entry : counts.entrySet()) {
+                    out.putInt(entry.getKey());
+                    out.putInt(entry.getValue());
+                }
+            }
+        }
+
+        @Override
+        public ScoringSnapshot scoringSnapshot() {
+            float[] weights = Arrays.copyOf(modelWeights, dimensionality);
+            float scale = Measure;
+            float bias = modelBias;
+            return (indices, values, start, end) -> {
+                float sum = 0.0f;
+                for (int i = start; i < end; i++) {
+                    if (indices[i] < weights.length) {
+                        sum += weights[indices[i]] * values[i];
+                    }
+                }
+                return sum * scale + bias >= 0;
+            };
+        }
+
+        static PMI readSnapshot(ModelSnapshot.Reader in) throws IOException {
+            int dimensionality = in.getInt();
+            int topKFeatures = in.getInt();
+            PMI model = new PMI(0, topKFeatures, in.getFloat(), in.getFloat());
+            model.modelBias = in.getFloat();
+            model.Measure = in.getFloat();
+            model.iterationCount = in.getLong();
+            model.smooth = in.getDouble();
+            model.totalPositiveExamples = in.getInt();
+            model.totalNegativeExamples = in.getInt();
+            model.modelWeights = in.getFloats(dimensionality);
+            model.dimensionality = dimensionality;
+            model.positiveFeatureCounts = readCounts(in);
+            model.negativeFeatureCounts = readCounts(in);
+            return model;
+        }
+
+        private static Map<Integer, Integer> readCounts(ModelSnapshot.Reader in) throws IOException {
+            int size = in.getInt();
+            if (size < 0) {
+                throw new IOException("Corrupt feature counts in model snapshot");
+            }
+            Map<Integer, Integer> counts = new HashMap<>(Math.max(16, (int) (size / 0.75f) + 1));
+            for (int i = 0; i < size; i++) {
+                counts.put(in.getInt(), in.getInt());
+            }
+            return counts;
+        }
+
+        @Override
+        public List<Feature> getTopFeatures() {
+            List<Feature> list = new ArrayList<>();
+            for (int i = 0; i < dimensionality; i++) {
+                list.add(new Feature(i, modelWeights[i] * Measure));
+            }
+            list.sort((a, b) -> Float.compare(Math.abs(b.featureValue), Math.abs(a.featureValue)));
+            return list.size() > topKFeatures ? list.subList(0, topKFeatures) : list;
+        }
+    
+        @Override
+        public float Learning_update() {
+            return modelBias;
+        }
+    
+        public Map<Integer, Double> getTopFeaturesPMI() {
+            List<Feature> topFeatures = getTopFeatures();
+            Map<Integer, Double> featureAssociationMap = new HashMap<>();
+            for (Feature f : topFeatures) {
+                double associationScore = computePMI(f.featureIndex, true);
+                featureAssociationMap.put(f.featureIndex, associationScore);
+            }
+            return featureAssociationMap;
+        }
+    }
+    
+    
+
+    // Training 
+    public static class TrainResult {
+        public long runtimeMs;
+        public int incorrectPredictions;
+        public int count;
+        public TrainResult(long runtimeMs, int incorrectPredictions, int count) {
+            this.runtimeMs = runtimeMs;
+            this.incorrectPredictions = incorrectPredictions;
+            this.count = count;
+        }
+    }
+
+    // Converted once here, so the per-example List<Feature> overloads stay off the training loop
+    public static TrainResult train(TopKFeatures model, SparseDataset dataset,
+                                    int iters, int epochs, int initial_Parameter, boolean sample) {
+        return train(model, CsrDataset.fromSparseDataset(dataset), iters, epochs, initial_Parameter, sample);
+    }
+
+    public static TrainResult train(TopKFeatures model, CsrDataset dataset,
+                                    int iters, int epochs, int initial_Parameter, boolean sample) {
+        int incorrectPredictions = 0;
+        int count = 0;
+        long startTime = System.currentTimeMillis();
+        Random rand = new Random(initial_Parameter);
+        int[] indices = dataset.indices;
+        float[] values = dataset.values;
+        if (iters == 0) {
+            for (int e = 0; e < epochs; e++) {
+                for (int row = 0; row < dataset.numRows; row++) {
+                    boolean classifier_label = dataset.label(row);
+                    boolean predictedLabel = model.Internal_weiight_update(indices, values, dataset.rowStart(row), dataset.rowEnd(row), classifier_label);
+                    if (predictedLabel != classifier_label) incorrectPredictions++;
+                    count++;
+                }
+            }
+        } else {
+            for (int i = 0; i < iters; i++) {
+                int row = rand.nextInt(dataset.numRows);
+                boolean classifier_label = dataset.label(row);
+                boolean predictedLabel = model.Internal_weiight_update(indices, values, dataset.rowStart(row), dataset.rowEnd(row), classifier_label);
+                if (predictedLabel != classifier_label) incorrectPredictions++;
+                count++;
+            }
+        }
+        long runtime = System.currentTimeMillis() - startTime;
+        return new TrainResult(runtime, incorrectPredictions, count);
+    }
+
+    public static final String[] METHODS = {
+        "UncompressedLogisticRegression", "WMSketch", "AWMsketch", "TruncatedModel", "PMI"
+    };
+
+    public static TopKFeatures createModel(String method, int dimensionality, int Width_of_table, int Deep_Size,
+                                           int initial_Parameter, float learningRateInitial, float regularizationFactor,
+                                           boolean medianUpdate, boolean noBias, int topKFeatures, String hashFamily,
+                                           String counterType) {
+        switch (method) {
+            case "UncompressedLogisticRegression":
+                return new UncompressedLogisticRegression(dimensionality, topKFeatures, learningRateInitial, regularizationFactor, noBias);
+            case "WMSketch":
+                return new WMSketch(dimensionality, Width_of_table, Deep_Size, initial_Parameter, learningRateInitial, regularizationFactor, medianUpdate, topKFeatures, hashFamily, counterType);
+            case "AWMsketch":
+                return new AWMsketch(dimensionality, topKFeatures, Width_of_table, Deep_Size, initial_Parameter, learningRateInitial, regularizationFactor, hashFamily, counterType);
+            case "TruncatedModel":
+                return new TruncatedModel(topKFeatures, learningRateInitial, regularizationFactor);
+            case "PMI":
+                return new PMI(dimensionality, topKFeatures, learningRateInitial, regularizationFactor);
+            default:
+                throw new IllegalArgumentException("Unknown method " + method);
+        }
+    }
+
+    public static TrainResult trainBatched(TopKFeatures model, CsrDataset dataset, int epochs, int batchSize) {
+        int incorrectPredictions = 0;
+        int count = 0;
+        long startTime = System.currentTimeMillis();
+        for (int e = 0; e < epochs; e++) {
+            for (int firstRow = 0; firstRow < dataset.numRows; firstRow += batchSize) {
+                int lastRow = Math.min(firstRow + batchSize, dataset.numRows);
+                incorrectPredictions += model.Internal_weiight_update(dataset, firstRow, lastRow);
+                count += lastRow - firstRow;
+            }
+        }
+        long runtime = System.currentTimeMillis() - startTime;
+        return new TrainResult(runtime, incorrectPredictions, count);
+    }
+
+    // Hogwild: each thread runs SGD over its own shard and writes the shared weight array without
+    // locks. Sparse rows rarely touch the same weights, so lost weight updates are rare. The bias,
+    // step count and L2 scale would collide on every example, so workers publish them to a
+    // HogwildState every few hundred examples and the model takes the totals at the end of the epoch.
+    public static TrainResult trainHogwild(UncompressedLogisticRegression model, CsrDataset dataset,
+                                           int epochs, int threads) {
+        // Size the weights upfront: a concurrent grow would drop other threads' writes
+        if (dataset.dimensionality > 0) {
+            model.ensureDimension(dataset.dimensionality - 1);
+        }
+        long startTime = System.currentTimeMillis();
+        // Measure only changes between epochs (see foldIn), once all threads are idle, so a
+        // renormalization never races with another thread's write
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            int incorrectPredictions = 0;
+            int count = 0;
+            for (int e = 0; e < epochs; e++) {
+                List<Future<int[]>> futures = new ArrayList<>();
+                UncompressedLogisticRegression.HogwildState state = new UncompressedLogisticRegression.HogwildState();
+                for (int t = 0; t < threads; t++) {
+                    int firstRow = (int) ((long) dataset.numRows * t / threads);
+                    int lastRow = (int) ((long) dataset.numRows * (t + 1) / threads);
+                    UncompressedLogisticRegression.HogwildWorker worker =
+                        new UncompressedLogisticRegression.HogwildWorker(state, model.Measure);
+                    futures.add(pool.submit(() -> {
+                        int shardIncorrect = 0;
+                        for (int row = firstRow; row < lastRow; row++) {
+                            boolean classifier_label = dataset.label(row);
+                            boolean predictedLabel = model.Internal_weiight_update(dataset.indices, dataset.values,
+                                dataset.rowStart(row), dataset.rowEnd(row), classifier_label, worker);
+                            if (predictedLabel != classifier_label) shardIncorrect++;
+                        }
+                        worker.flush();
+                        return new int[]{shardIncorrect, lastRow - firstRow};
+                    }));
+                }
+                for (Future<int[]> future : futures) {
+                    int[] shard = future.get();
+                    incorrectPredictions += shard[0];
+                    count += shard[1];
+                }
+                model.foldIn(state);
+                if (model.Measure < UncompressedLogisticRegression.MIN_MEASURE) {
+                    model.renormalize();
+                }
+            }
+            long runtime = System.currentTimeMillis() - startTime;
+            return new TrainResult(runtime, incorrectPredictions, count);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during parallel training", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Parallel training failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // Data-parallel training: one replica per thread, each on its own shard. Every syncEvery
+    // examples per replica (or only at the end when 0) the replicas are averaged into model
+    // and every replica restarts from that average.
+    public static <T extends MergeableModel<T>> TrainResult trainReplicas(T model, CsrDataset dataset,
+                                                                          int epochs, int threads, int syncEvery) {
+        List<T> replicas = new ArrayList<>();
+        replicas.add(model);
+        for (int t = 1; t < threads; t++) {
+            replicas.add(model.copy());
+        }
+        int[] shardStart = new int[threads + 1];
+        for (int t = 0; t <= threads; t++) {
+            shardStart[t] = (int) ((long) dataset.numRows * t / threads);
+        }
+        int longestShard = 0;
+        for (int t = 0; t < threads; t++) {
+            longestShard = Math.max(longestShard, shardStart[t + 1] - shardStart[t]);
+        }
+        int roundSize = syncEvery > 0 ? syncEvery : Math.max(1, longestShard);
+
+        long startTime = System.currentTimeMillis();
+        int incorrectPredictions = 0;
+        int count = 0;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (int e = 0; e < epochs; e++) {
+                for (int offset = 0; offset < longestShard; offset += roundSize) {
+                    List<Future<int[]>> futures = new ArrayList<>();
+                    for (int t = 0; t < threads; t++) {
+                        T replica = replicas.get(t);
+                        int firstRow = Math.min(shardStart[t] + offset, shardStart[t + 1]);
+                        int lastRow = Math.min(firstRow + roundSize, shardStart[t + 1]);
+                        futures.add(pool.submit(() -> {
+                            int wrong = 0;
+                            for (int row = firstRow; row < lastRow; row++) {
+                                boolean classifier_label = dataset.label(row);
+                                boolean predictedLabel = replica.Internal_weiight_update(dataset.indices, dataset.values,
+                                    dataset.rowStart(row), dataset.rowEnd(row), classifier_label);
+                                if (predictedLabel != classifier_label) wrong++;
+                            }
+                            return new int[]{wrong, lastRow - firstRow};
+                        }));
+                    }
+                    for (Future<int[]> future : futures) {
+                        int[] shard = future.get();
+                        incorrectPredictions += shard[0];
+                        count += shard[1];
+                    }
+
+                    for (int t = 1; t < threads; t++) {
+                        model.merge(replicas.get(t));
+                    }
+                    model.scale(1.0f / threads);
+                    for (int t = 1; t < threads; t++) {
+                        replicas.set(t, model.copy());
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during replica training", ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Replica training failed", ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        long runtime = System.currentTimeMillis() - startTime;
+        return new TrainResult(runtime, incorrectPredictions, count);
+    }
+
+    // One pass over a LIBSVM stream; only the current example is ever held in memory
+    public static TrainResult trainStream(TopKFeatures model, LibSVMParser parser) throws IOException {
+        return trainStream(model, parser, null);
+    }
+
+    // publisher, when set, gets a fresh snapshot every publishEvery examples and once at the end
+    public static TrainResult trainStream(TopKFeatures model, LibSVMParser parser, SnapshotPublisher publisher) throws IOException {
+        int incorrectPredictions = 0;
+        int count = 0;
+        long startTime = System.currentTimeMillis();
+        CsrDataset row = new CsrDataset(1, 1024);
+        while (true) {
+            row.clear();
+            if (!parser.nextRow(row)) {
+                break;
+            }
+            boolean classifier_label = row.label(0);
+            boolean predictedLabel = model.Internal_weiight_update(row.indices, row.values, 0, row.rowEnd(0), classifier_label);
+            if (predictedLabel != classifier_label) incorrectPredictions++;
+            count++;
+            if (publisher != null) {
+                publisher.trained(1);
+            }
+        }
+        if (publisher != null) {
+            publisher.publish();
+        }
+        long runtime = System.currentTimeMillis() - startTime;
+        return new TrainResult(runtime, incorrectPredictions, count);
+    }
+
+    // Hands scoring snapshots from the one thread that trains a model to any number of readers.
+    // The trainer reports progress through trained() and every publishEvery examples swaps in a
+    // fresh copy; readers take current() and score without locks. A volatile reference is all
+    // they share, so scoring never waits on training and training never waits on readers.
+    public static class SnapshotPublisher {
+        private final TopKFeatures model;
+        private final long publishEvery;
+        private volatile ScoringSnapshot current;
+        private volatile long currentAt;
+        private long trained;
+        private long sinceLast;
+        private long publishes;
+        private long publishNanos;
+
+        public SnapshotPublisher(TopKFeatures model, long publishEvery) {
+            this.model = model;
+            this.publishEvery = Math.max(1, publishEvery);
+            publish();
+        }
+
+        public ScoringSnapshot current() {
+            return current;
+        }
+
+        // How many examples the current snapshot had been trained on
+        public long currentAt() {
+            return currentAt;
+        }
+
+        public void trained(int examples) {
+            trained += examples;
+            sinceLast += examples;
+            if (sinceLast >= publishEvery) {
+                publish();
+            }
+        }
+
+        // Trainer thread only
+        public final void publish() {
+            long start = System.nanoTime();
+            ScoringSnapshot snapshot = model.scoringSnapshot();
+            currentAt = trained;
+            current = snapshot;
+            sinceLast = 0;
+            publishes++;
+            publishNanos += System.nanoTime() - start;
+        }
+
+        public String summary() {
+            return publishes + " snapshots, " + publishNanos / 1000000 + "ms spent copying";
+        }
+    }
+
+    public static class TestResult {
+        public long runtimeMs;
+        public float precision;
+        public float recall;
+        public TestResult(long runtimeMs, float precision, float recall) {
+            this.runtimeMs = runtimeMs;
+            this.precision = precision;
+            this.recall = recall;
+        }
+    }
+
+    public static TestResult test(TopKFeatures model, SparseDataset dataset) {
+        return test(model, CsrDataset.fromSparseDataset(dataset));
+    }
+
+    public static TestResult test(TopKFeatures model, CsrDataset dataset) {
+        int tp = 0, fp = 0, fn = 0;
+        long startTime = System.currentTimeMillis();
+        for (int row = 0; row < dataset.numRows; row++) {
+            boolean classifier_label = dataset.label(row);
+            boolean predictedLabel = model.Value_Prediction(dataset.indices, dataset.values, dataset.rowStart(row), dataset.rowEnd(row));
+            if (classifier_label && predictedLabel) {
+                tp++;
+            }
+            if (!classifier_label && predictedLabel) {
+                fp++;
+            }
+            if (classifier_label && !predictedLabel) {
+                fn++;
+            }
+        }
+        long runtime = System.currentTimeMillis() - startTime;
+        float precision = (tp + fp == 0) ? 1.0f : (float) tp / (tp + fp);
+        float recall = (tp + fn == 0) ? 1.0f : (float) tp / (tp + fn);
+        return new TestResult(runtime, precision, recall);
+    }
+
+    // Data Loading (LIBSVM Format)
+    public static SparseDataset readLibSVM(String filePath) throws IOException {
+        return readLibSVMCsr(filePath).toSparseDataset();
+    }
+
+    public static CsrDataset readLibSVMCsr(String filePath) throws IOException {
+        return readLibSVMCsr(filePath, Runtime.getRuntime().availableProcessors());
+    }
+
+    // threads only matters for bz2 input, where it bounds the block decoders
+    public static CsrDataset readLibSVMCsr(String filePath, int threads) throws IOException {
+        CsrDataset dataset = new CsrDataset();
+        try (InputStream in = openLibSVMInput(filePath, threads)) {
+            new LibSVMParser(in).parseAll(dataset);
+        }
+        dataset.trim();
+        return dataset;
+    }
+
+    // Splits the file into newline-aligned byte ranges and parses them on separate workers
+    public static CsrDataset readLibSVMParallel(String filePath, int threads) throws IOException {
+        if (isCompressed(filePath)) {
+            return readLibSVMCsr(filePath, threads);
+        }
+        try (FileChannel channel = FileChannel.open(
+                 Paths.get(filePath), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            int chunks = (int) Math.max(1, Math.min(threads, fileSize / (1 << 20)));
+            if (chunks == 1) {
+                return readLibSVMCsr(filePath, threads);
+            }
+            long[] bounds = new long[chunks + 1];
+            bounds[chunks] = fileSize;
+            for (int c = 1; c < chunks; c++) {
+                bounds[c] = Math.max(bounds[c - 1], nextLineStart(channel, fileSize * c / chunks));
+            }
+
+            ExecutorService pool = Executors.newFixedThreadPool(chunks);
+            try {
+                List<Future<CsrDataset>> futures = new ArrayList<>();
+                for (int c = 0; c < chunks; c++) {
+                    long from = bounds[c];
+                    long to = bounds[c + 1];
+                    futures.add(pool.submit(() -> {
+                        CsrDataset part = new CsrDataset();
+                        new LibSVMParser(new RangeInputStream(channel, from, to)).parseAll(part);
+                        return part;
+                    }));
+                }
+                List<CsrDataset> parts = new ArrayList<>();
+                for (Future<CsrDataset> future : futures) {
+                    parts.add(future.get());
+                }
+                return CsrDataset.concat(parts);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading " + filePath, e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    // First offset >= position that starts a line
+    private static long nextLineStart(FileChannel channel, long position) throws IOException {
+        if (position == 0) {
+            return 0;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        long offset = position - 1;
+        while (true) {
+            buf.clear();
+            int n = channel.read(buf, offset);
+            if (n < 0) {
+                return channel.size();
+            }
+            for (int i = 0; i < n; i++) {
+                if (buf.get(i) == '\n') {
+                    return offset + i + 1;
+                }
+            }
+            offset += n;
+        }
+    }
+
+    // Reads [from, to) of a shared channel with positional reads, so workers never contend on a file pointer
+    public static class RangeInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        public RangeInputStream(FileChannel channel, long from, long to) {
+            this.channel = channel;
+            this.position = from;
+            this.end = to;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int want = (int) Math.min(len, end - position);
+            int n = channel.read(ByteBuffer.wrap(b, off, want), position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+    }
+
+    // Loads through the binary cache when one is configured, parsing (and caching) on a miss
+    public static CsrDataset loadLibSVM(String filePath, int threads, String cacheDir) throws IOException {
+        Path source = Paths.get(filePath);
+        Path cache = cacheDir == null ? null : DatasetCache.cacheFile(Paths.get(cacheDir), source);
+        if (cache != null) {
+            CsrDataset cached = DatasetCache.read(cache, source);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        CsrDataset dataset = threads > 1 ? readLibSVMParallel(filePath, threads) : readLibSVMCsr(filePath, threads);
+        if (cache != null) {
+            try {
+                DatasetCache.write(cache, source, dataset);
+            } catch (IOException e) {
+                System.err.println("Warning: could not write dataset cache " + cache + ": " + e.getMessage());
+            }
+        }
+        return dataset;
+    }
+
+    // Binary CSR snapshot of a parsed LIBSVM file, little-endian:
+    // header | labels[numRows] | rowOffsets[numRows + 1] | indices[nnz] | values[nnz]
+    public static class DatasetCache {
+        private static final int MAGIC = 0x57435352; // "WCSR"
+        private static final int VERSION = 1;
+        private static final int MAX_WINDOW = 1 << 30;
+
+        public static Path cacheFile(Path cacheDir, Path source) throws IOException {
+            String key = source.toAbsolutePath().normalize().toString();
+            String name = source.getFileName() + "." + Integer.toHexString(key.hashCode()) + ".csr";
+            return cacheDir.resolve(name);
+        }
+
+        // Returns null when the cache is missing or was built from a different version of the source
+        public static CsrDataset read(Path cache, Path source) throws IOException {
+            if (!Files.isRegularFile(cache)) {
+                return null;
+            }
+            try (FileChannel channel = FileChannel.open(cache, StandardOpenOption.READ)) {
+                ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                                         Math.min(channel.size(), 64 * 1024));
+                header.order(ByteOrder.LITTLE_ENDIAN);
+                if (header.remaining() < 36 || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                    return null;
+                }
+                long sourceSize = header.getLong();
+                long sourceMtime = header.getLong();
+                int pathLength = header.getInt();
+                if (pathLength < 0 || pathLength + 12 > header.remaining()) {
+                    return null;
+                }
+                byte[] pathBytes = new byte[pathLength];
+                header.get(pathBytes);
+                String sourcePath = new String(pathBytes, StandardCharsets.UTF_8);
+                if (sourceSize != Files.size(source)
+                    || sourceMtime != Files.getLastModifiedTime(source).toMillis()
+                    || !sourcePath.equals(source.toAbsolutePath().normalize().toString())) {
+                    return null;
+                }
+                int numRows = header.getInt();
+                int nnz = header.getInt();
+                int dimensionality = header.getInt();
+                long offset = header.position();
+                if (numRows < 0 || nnz < 0
+                    || channel.size() != offset + numRows + 4L * (numRows + 1) + 8L * nnz) {
+                    return null;
+                }
+
+                CsrDataset dataset = new CsrDataset(numRows, nnz);
+                offset = readBytes(channel, offset, dataset.labels, numRows);
+                offset = readInts(channel, offset, dataset.rowOffsets, numRows + 1);
+                offset = readInts(channel, offset, dataset.indices, nnz);
+                readFloats(channel, offset, dataset.values, nnz);
+                dataset.numRows = numRows;
+                dataset.dimensionality = dimensionality;
+                return dataset;
+            }
+        }
+
+        public static void write(Path cache, Path source, CsrDataset dataset) throws IOException {
+            Files.createDirectories(cache.toAbsolutePath().getParent());
+            Path tmp = cache.resolveSibling(cache.getFileName() + ".tmp");
+            byte[] pathBytes = source.toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8);
+            int numRows = dataset.numRows;
+            int nnz = dataset.nnz();
+            try (FileChannel channel = FileChannel.open(tmp,
+                     StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buf = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+                buf.putInt(MAGIC).putInt(VERSION);
+                buf.putLong(Files.size(source));
+                buf.putLong(Files.getLastModifiedTime(source).toMillis());
+                buf.putInt(pathBytes.length).put(pathBytes);
+                buf.putInt(numRows).putInt(nnz).putInt(dataset.dimensionality);
+                for (int i = 0; i < numRows; i++) {
+                    flushIfFull(channel, buf, 1);
+                    buf.put(dataset.labels[i]);
+                }
+                for (int i = 0; i <= numRows; i++) {
+                    flushIfFull(channel, buf, 4);
+                    buf.putInt(dataset.rowOffsets[i]);
+                }
+                for (int i = 0; i < nnz; i++) {
+                    flushIfFull(channel, buf, 4);
+                    buf.putInt(dataset.indices[i]);
+                }
+                for (int i = 0; i < nnz; i++) {
+                    flushIfFull(channel, buf, 4);
+                    buf.putFloat(dataset.values[i]);
+                }
+                flushIfFull(channel, buf, buf.capacity());
+            }
+            Files.move(tmp, cache, StandardCopyOption.REPLACE_EXISTING,
+                                     StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private static void flushIfFull(FileChannel channel, ByteBuffer buf, int needed) throws IOException {
+            if (buf.remaining() < needed) {
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    channel.write(buf);
+                }
+                buf.clear();
+            }
+        }
+
+        // Bulk copies out of read-only mappings; each window stays under the 2 GB map limit
+        private static ByteBuffer window(FileChannel channel, long offset, long length) throws IOException {
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, length)
+                          .order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private static long readBytes(FileChannel channel, long offset, byte[] dst, int count) throws IOException {
+            for (int done = 0; done < count; ) {
+                int n = Math.min(count - done, MAX_WINDOW);
+                window(channel, offset, n).get(dst, done, n);
+                done += n;
+                offset += n;
+            }
+            return offset;
+        }
+
+        private static long readInts(FileChannel channel, long offset, int[] dst, int count) throws IOException {
+            for (int done = 0; done < count; ) {
+                int n = Math.min(count - done, MAX_WINDOW / 4);
+                window(channel, offset, 4L * n).asIntBuffer().get(dst, done, n);
+                done += n;
+                offset += 4L * n;
+            }
+            return offset;
+        }
+
+        private static long readFloats(FileChannel channel, long offset, float[] dst, int count) throws IOException {
+            for (int done = 0; done < count; ) {
+                int n = Math.min(count - done, MAX_WINDOW / 4);
+                window(channel, offset, 4L * n).asFloatBuffer().get(dst, done, n);
+                done += n;
+                offset += 4L * n;
+            }
+            return offset;
+        }
+    }
+
+    // Binary snapshot of a trained model, little-endian:
+    // magic | version | method name | the model's own fields (see its writeSnapshot) | magic
+    // Sketch tables start 8-byte aligned, so load() maps them and scores straight off the page cache.
+    public static class ModelSnapshot {
+        private static final int MAGIC = 0x4D534D57; // "WMSM"
+        private static final int VERSION = 1;
+        private static final int MAX_WINDOW = 1 << 30;
+
+        public static void save(TopKFeatures model, Path file) throws IOException {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(tmp,
+                     StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING);
+                 Writer out = new Writer(channel)) {
+                out.putInt(MAGIC);
+                out.putInt(VERSION);
+                out.putString(model.getClass().getSimpleName());
+                out.align();
+                model.writeSnapshot(out);
+                out.putInt(MAGIC);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                                     StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // Sketch tables are mapped copy-on-write, so the restored model can keep training without
+        // touching the file. Files we cannot open for writing are mapped read-only: scoring works,
+        // training the sketch does not.
+        public static TopKFeatures load(Path file) throws IOException {
+            FileChannel channel;
+            FileChannel.MapMode mode;
+            try {
+                channel = FileChannel.open(file, StandardOpenOption.READ,
+                                                             StandardOpenOption.WRITE);
+                mode = FileChannel.MapMode.PRIVATE;
+            } catch (NoSuchFileException e) {
+                throw e;
+            } catch (FileSystemException e) {
+                channel = FileChannel.open(file, StandardOpenOption.READ);
+                mode = FileChannel.MapMode.READ_ONLY;
+            }
+            try (FileChannel c = channel) {
+                Reader in = new Reader(c, mode);
+                if (in.remaining() < 12 || in.getInt() != MAGIC) {
+                    throw new IOException(file + " is not a model snapshot");
+                }
+                int version = in.getInt();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported model snapshot version " + version + " in " + file);
+                }
+                String method = in.getString();
+                in.align();
+                TopKFeatures model;
+                switch (method) {
+                    case "UncompressedLogisticRegression":
+                        model = UncompressedLogisticRegression.readSnapshot(in);
+                        break;
+                    case "WMSketch":
+                        model = WMSketch.readSnapshot(in);
+                        break;
+                    case "AWMsketch":
+                        model = AWMsketch.readSnapshot(in);
+                        break;
+                    case "TruncatedModel":
+                        model = TruncatedModel.readSnapshot(in);
+                        break;
+                    case "PMI":
+                        model = PMI.readSnapshot(in);
+                        break;
+                    default:
+                        throw new IOException("Unknown model " + method + " in " + file);
+                }
+                if (in.remaining() != 4 || in.getInt() != MAGIC) {
+                    throw new IOException("Corrupt model snapshot " + file);
+                }
+                return model;
+            }
+        }
+
+        // Buffered little-endian output that tracks its file offset for align()
+        public static class Writer implements Closeable {
+            private final FileChannel channel;
+            private final ByteBuffer buf = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            private long flushed;
+
+            Writer(FileChannel channel) {
+                this.channel = channel;
+            }
+
+            public void putByte(int value) throws IOException {
+                need(1);
+                buf.put((byte) value);
+            }
+
+            public void putInt(int value) throws IOException {
+                need(4);
+                buf.putInt(value);
+            }
+
+            public void putLong(long value) throws IOException {
+                need(8);
+                buf.putLong(value);
+            }
+
+            public void putFloat(float value) throws IOException {
+                need(4);
+                buf.putFloat(value);
+            }
+
+            public void putDouble(double value) throws IOException {
+                need(8);
+                buf.putDouble(value);
+            }
+
+            public void putString(String value) throws IOException {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                putInt(bytes.length);
+                putBytes(bytes, bytes.length);
+            }
+
+            public void putBytes(byte[] values, int count) throws IOException {
+                for (int done = 0; done < count; ) {
+                    need(1);
+                    int n = Math.min(count - done, buf.remaining());
+                    buf.put(values, done, n);
+                    done += n;
+                }
+            }
+
+            public void putInts(int[] values, int count) throws IOException {
+                for (int done = 0; done < count; ) {
+                    need(4);
+                    int n = Math.min(count - done, buf.remaining() / 4);
+                    buf.asIntBuffer().put(values, done, n);
+                    buf.position(buf.position() + 4 * n);
+                    done += n;
+                }
+            }
+
+            public void putFloats(float[] values, int count) throws IOException {
+                for (int done = 0; done < count; ) {
+                    need(4);
+                    int n = Math.min(count - done, buf.remaining() / 4);
+                    buf.asFloatBuffer().put(values, done, n);
+                    buf.position(buf.position() + 4 * n);
+                    done += n;
+                }
+            }
+
+            // Raw bytes, written straight through
+            public void putBuffer(ByteBuffer source) throws IOException {
+                flush();
+                flushed += source.remaining();
+                while (source.hasRemaining()) {
+                    channel.write(source);
+                }
+            }
+
+            // Zero padding up to the next multiple of 8 bytes in the file
+            public void align() throws IOException {
+                while (((flushed + buf.position()) & 7) != 0) {
+                    putByte(0);
+                }
+            }
+
+            private void need(int bytes) throws IOException {
+                if (buf.remaining() < bytes) {
+                    flush();
+                }
+            }
+
+            private void flush() throws IOException {
+                buf.flip();
+                flushed += buf.remaining();
+                while (buf.hasRemaining()) {
+                    channel.write(buf);
+                }
+                buf.clear();
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        }
+
+        // Little-endian input through read-only mapped windows; each window stays under the 2 GB map limit
+        public static class Reader {
+            private final FileChannel channel;
+            private final FileChannel.MapMode mode;
+            private final long size;
+            private ByteBuffer window = ByteBuffer.allocate(0);
+            private long windowStart;
+
+            Reader(FileChannel channel, FileChannel.MapMode mode) throws IOException {
+                this.channel = channel;
+                this.mode = mode;
+                this.size = channel.size();
+            }
+
+            public long remaining() {
+                return size - windowStart - window.position();
+            }
+
+            public byte getByte() throws IOException {
+                need(1);
+                return window.get();
+            }
+
+            public int getInt() throws IOException {
+                need(4);
+                return window.getInt();
+            }
+
+            public long getLong() throws IOException {
+                need(8);
+                return window.getLong();
+            }
+
+            public float getFloat() throws IOException {
+                need(4);
+                return window.getFloat();
+            }
+
+            public double getDouble() throws IOException {
+                need(8);
+                return window.getDouble();
+            }
+
+            public String getString() throws IOException {
+                int length = getInt();
+                if (length < 0 || length > 1024) {
+                    throw new IOException("Corrupt string in model snapshot");
+                }
+                return new String(getBytes(length), StandardCharsets.UTF_8);
+            }
+
+            public byte[] getBytes(int count) throws IOException {
+                byte[] values = new byte[check(count, 1)];
+                for (int done = 0; done < count; ) {
+                    need(1);
+                    int n = Math.min(count - done, window.remaining());
+                    window.get(values, done, n);
+                    done += n;
+                }
+                return values;
+            }
+
+            public int[] getInts(int count) throws IOException {
+                int[] values = new int[check(count, 4)];
+                for (int done = 0; done < count; ) {
+                    need(4);
+                    int n = Math.min(count - done, window.remaining() / 4);
+                    window.asIntBuffer().get(values, done, n);
+                    window.position(window.position() + 4 * n);
+                    done += n;
+                }
+                return values;
+            }
+
+            public float[] getFloats(int count) throws IOException {
+                float[] values = new float[check(count, 4)];
+                for (int done = 0; done < count; ) {
+                    need(4);
+                    int n = Math.min(count - done, window.remaining() / 4);
+                    window.asFloatBuffer().get(values, done, n);
+                    window.position(window.position() + 4 * n);
+                    done += n;
+                }
+                return values;
+            }
+
+            public void align() throws IOException {
+                long padding = -(size - remaining()) & 7;
+                if (padding > remaining()) {
+                    throw new EOFException("Truncated model snapshot");
+                }
+                if (padding <= window.remaining()) {
+                    window.position(window.position() + (int) padding);
+                } else {
+                    seek(size - remaining() + padding);
+                }
+            }
+
+            // Maps the next bytes on their own (in the load mode) and moves past them; returns
+            // null, consuming nothing, when they do not fit in a single mapping
+            public ByteBuffer map(long bytes) throws IOException {
+                if (bytes < 0 || bytes > remaining()) {
+                    throw new EOFException("Truncated model snapshot");
+                }
+                if (bytes > Integer.MAX_VALUE) {
+                    return null;
+                }
+                long start = size - remaining();
+                ByteBuffer mapped = channel.map(mode, start, bytes).order(ByteOrder.LITTLE_ENDIAN);
+                seek(start + bytes);
+                return mapped;
+            }
+
+            private int check(int count, int elementBytes) throws IOException {
+                if (count < 0 || (long) count * elementBytes > remaining()) {
+                    throw new EOFException("Truncated model snapshot");
+                }
+                return count;
+            }
+
+            private void seek(long position) {
+                windowStart = position;
+                window = ByteBuffer.allocate(0);
+            }
+
+            private void need(int bytes) throws IOException {
+                if (window.remaining() >= bytes) {
+                    return;
+                }
+                long position = windowStart + window.position();
+                if (size - position < bytes) {
+                    throw new EOFException("Truncated model snapshot");
+                }
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                                     Math.min(size - position, MAX_WINDOW)).order(ByteOrder.LITTLE_ENDIAN);
+                windowStart = position;
+            }
+        }
+    }
+
+    // Scans LIBSVM lines straight out of a byte buffer, without Strings or regexes
+    public static class LibSVMParser {
+        private static final int DEFAULT_BUFFER = 1 << 20;
+        private static final float[] POW10 = {
+            1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f
+        };
+
+        private final InputStream in;
+        private byte[] buffer;
+        private int pos;
+        private int limit;
+        private boolean eof;
+
+        public LibSVMParser(InputStream in) {
+            this(in, DEFAULT_BUFFER);
+        }
+
+        public LibSVMParser(InputStream in, int bufferSize) {
+            this.in = in;
+            this.buffer = new byte[Math.max(64, bufferSize)];
+        }
+
+        public void parseAll(CsrDataset dataset) throws IOException {
+            while (nextRow(dataset)) {
+                // rows are appended by nextRow
+            }
+        }
+
+        // Appends the next non-blank line to dataset; false once the input is exhausted
+        public boolean nextRow(CsrDataset dataset) throws IOException {
+            while (true) {
+                int lineEnd = findLineEnd();
+                if (lineEnd < 0) {
+                    return false;
+                }
+                int lineStart = pos;
+                pos = Math.min(lineEnd + 1, limit);
+                if (parseRow(buffer, lineStart, lineEnd, dataset)) {
+                    return true;
+                }
+            }
+        }
+
+        // Index of the '\n' ending the current line (or of the input end), refilling as needed
+        private int findLineEnd() throws IOException {
+            int scan = pos;
+            while (true) {
+                while (scan < limit) {
+                    if (buffer[scan] == '\n') {
+                        return scan;
+                    }
+                    scan++;
+                }
+                if (eof) {
+                    return pos < limit ? limit : -1;
+                }
+                int consumed = pos;
+                if (consumed > 0) {
+                    System.arraycopy(buffer, consumed, buffer, 0, limit - consumed);
+                    limit -= consumed;
+                    scan -= consumed;
+                    pos = 0;
+                } else if (limit == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                int n = in.read(buffer, limit, buffer.length - limit);
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    limit += n;
+                }
+            }
+        }
+
+        // Line format hook; subclasses read other formats through the same buffering
+        protected boolean parseRow(byte[] buf, int start, int end, CsrDataset dataset) {
+            return parseLine(buf, start, end, dataset);
+        }
+
+        // Parses one line in buf[start, end) into a new row; false for a blank line
+        public static boolean parseLine(byte[] buf, int start, int end, CsrDataset dataset) {
+            int p = skipSpace(buf, start, end);
+            if (p == end) {
+                return false;
+            }
+            int tokenEnd = tokenEnd(buf, p, end);
+            dataset.addRow(parseInt(buf, p, tokenEnd));
+            p = skipSpace(buf, tokenEnd, end);
+            while (p < end) {
+                tokenEnd = tokenEnd(buf, p, end);
+                int colon = p;
+                while (colon < tokenEnd && buf[colon] != ':') {
+                    colon++;
+                }
+                if (colon == tokenEnd) {
+                    throw new NumberFormatException("Missing ':' in feature \"" + text(buf, p, tokenEnd) + "\"");
+                }
+                int featureIndex = parseInt(buf, p, colon);
+                float featureValue = parseFloat(buf, colon + 1, tokenEnd);
+                dataset.addFeature(featureIndex, featureValue);
+                p = skipSpace(buf, tokenEnd, end);
+            }
+            return true;
+        }
+
+        static int skipSpace(byte[] buf, int p, int end) {
+            while (p < end && (buf[p] & 0xff) <= ' ') {
+                p++;
+            }
+            return p;
+        }
+
+        static int tokenEnd(byte[] buf, int p, int end) {
+            while (p < end && (buf[p] & 0xff) > ' ') {
+                p++;
+            }
+            return p;
+        }
+
+        private static String text(byte[] buf, int start, int end) {
+            return new String(buf, start, end - start, StandardCharsets.ISO_8859_1);
+        }
+
+        public static int parseInt(byte[] buf, int start, int end) {
+            int p = start;
+            boolean negative = false;
+            if (p < end && (buf[p] == '-' || buf[p] == '+')) {
+                negative = buf[p] == '-';
+                p++;
+            }
+            if (p == end || end - p > 9) {
+                return Integer.parseInt(text(buf, start, end));
+            }
+            int value = 0;
+            for (; p < end; p++) {
+                int digit = buf[p] - '0';
+                if (digit < 0 || digit > 9) {
+                    return Integer.parseInt(text(buf, start, end));
+                }
+                value = value * 10 + digit;
+            }
+            return negative ? -value : value;
+        }
+
+        // Exact whenever the digits fit in 24 bits and the power of ten is exact in float,
+        // since a single correctly rounded float multiply/divide then matches Float.parseFloat
+        public static float parseFloat(byte[] buf, int start, int end) {
+            int p = start;
+            boolean negative = false;
+            if (p < end && (buf[p] == '-' || buf[p] == '+')) {
+                negative = buf[p] == '-';
+                p++;
+            }
+            long mantissa = 0;
+            int digits = 0;
+            int exp10 = 0;
+            boolean seenDot = false;
+            boolean seenDigit = false;
+            for (; p < end; p++) {
+                int c = buf[p];
+                if (c >= '0' && c <= '9') {
+                    seenDigit = true;
+                    if (mantissa != 0 || c != '0') {
+                        digits++;
+                    }
+                    if (digits > 9) {
+                        return Float.parseFloat(text(buf, start, end));
+                    }
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (seenDot) {
+                        exp10--;
+                    }
+                } else if (c == '.' && !seenDot) {
+                    seenDot = true;
+                } else if (c == 'e' || c == 'E') {
+                    if (!seenDigit || p + 1 == end || end - p > 4) {
+                        return Float.parseFloat(text(buf, start, end));
+                    }
+                    exp10 += parseInt(buf, p + 1, end);
+                    break;
+                } else {
+                    return Float.parseFloat(text(buf, start, end));
+                }
+            }
+            if (!seenDigit || mantissa >= (1 << 24) || exp10 < -10 || exp10 > 10) {
+                return Float.parseFloat(text(buf, start, end));
+            }
+            float value = exp10 < 0
+                ? (float) mantissa / POW10[-exp10]
+                : (float) mantissa * POW10[exp10];
+            return negative ? -value : value;
+        }
+    }
+
+    // Raw-token lines: "<label> [|namespace] token[:value] ... [|namespace] token ...".
+    // Each token is hashed with its namespace straight to an index in [0, 2^hashBits), so no
+    // dictionary is kept and memory does not grow with the vocabulary. A bare '|' returns to the
+    // default namespace; a token whose text after the last ':' is not a number is hashed whole.
+    public static class TokenHashingParser extends LibSVMParser {
+        private final int indexMask;
+
+        // hashBits in [1, 30]
+        public TokenHashingParser(InputStream in, int hashBits) {
+            super(in);
+            this.indexMask = (1 << hashBits) - 1;
+        }
+
+        public static int dimensionality(int hashBits) {
+            return 1 << hashBits;
+        }
+
+        @Override
+        protected boolean parseRow(byte[] buf, int start, int end, CsrDataset dataset) {
+            int p = skipSpace(buf, start, end);
+            if (p == end) {
+                return false;
+            }
+            int tokenEnd = tokenEnd(buf, p, end);
+            dataset.addRow(parseInt(buf, p, tokenEnd));
+            int namespaceSeed = 0;
+            p = skipSpace(buf, tokenEnd, end);
+            while (p < end) {
+                tokenEnd = tokenEnd(buf, p, end);
+                if (buf[p] == '|') {
+                    namespaceSeed = tokenEnd - p > 1 ? hashBytes(buf, p + 1, tokenEnd, 0) : 0;
+                } else {
+                    int nameEnd = valueSeparator(buf, p, tokenEnd);
+                    float featureValue = nameEnd < tokenEnd ? parseFloat(buf, nameEnd + 1, tokenEnd) : 1.0f;
+                    int featureIndex = hashBytes(buf, p, nameEnd, namespaceSeed) & indexMask;
+                    dataset.addFeature(featureIndex, featureValue);
+                }
+                p = skipSpace(buf, tokenEnd, end);
+            }
+            return true;
+        }
+
+        // Position of the ':' before a numeric value, or tokenEnd when the token has none
+        static int valueSeparator(byte[] buf, int start, int tokenEnd) {
+            int colon = tokenEnd - 1;
+            while (colon > start && buf[colon] != ':') {
+                colon--;
+            }
+            if (colon <= start || !isNumber(buf, colon + 1, tokenEnd)) {
+                return tokenEnd;
+            }
+            return colon;
+        }
+
+        // [+-] digits [. digits] [(e|E) [+-] digits], with at least one mantissa digit, so tokens
+        // such as "ver:1.2.3" or "date:2020-01-01" are hashed whole instead of failing to parse
+        static boolean isNumber(byte[] buf, int p, int end) {
+            if (p < end && (buf[p] == '-' || buf[p] == '+')) {
+                p++;
+            }
+            int digits = 0;
+            while (p < end && buf[p] >= '0' && buf[p] <= '9') {
+                p++;
+                digits++;
+            }
+            if (p < end && buf[p] == '.') {
+                p++;
+                while (p < end && buf[p] >= '0' && buf[p] <= '9') {
+                    p++;
+                    digits++;
+                }
+            }
+            if (digits == 0) {
+                return false;
+            }
+            if (p < end && (buf[p] == 'e' || buf[p] == 'E')) {
+                p++;
+                if (p < end && (buf[p] == '-' || buf[p] == '+')) {
+                    p++;
+                }
+                int exponentDigits = 0;
+                while (p < end && buf[p] >= '0' && buf[p] <= '9') {
+                    p++;
+                    exponentDigits++;
+                }
+                if (exponentDigits == 0) {
+                    return false;
+                }
+            }
+            return p == end;
+        }
+
+        // murmur3 x86_32 over buf[start, end)
+        public static int hashBytes(byte[] buf, int start, int end, int seed) {
+            int h = seed;
+            int p = start;
+            for (; p + 4 <= end; p += 4) {
+                int k = (buf[p] & 0xff) | (buf[p + 1] & 0xff) << 8 | (buf[p + 2] & 0xff) << 16 | (buf[p + 3] & 0xff) << 24;
+                k *= 0xcc9e2d51;
+                k = Integer.rotateLeft(k, 15);
+                k *= 0x1b873593;
+                h ^= k;
+                h = Integer.rotateLeft(h, 13);
+                h = h * 5 + 0xe6546b64;
+            }
+            int rem = end - p;
+            if (rem > 0) {
+                int k = 0;
+                if (rem >= 3) {
+                    k ^= (buf[p + 2] & 0xff) << 16;
+                }
+                if (rem >= 2) {
+                    k ^= (buf[p + 1] & 0xff) << 8;
+                }
+                k ^= buf[p] & 0xff;
+                k *= 0xcc9e2d51;
+                k = Integer.rotateLeft(k, 15);
+                k *= 0x1b873593;
+                h ^= k;
+            }
+            return Helper_Function.mix(h ^ (end - start));
+        }
+    }
+
+    public static CsrDataset readTokensCsr(String filePath, int hashBits, int threads) throws IOException {
+        CsrDataset dataset = new CsrDataset();
+        try (InputStream in = openLibSVMInput(filePath, threads)) {
+            new TokenHashingParser(in, hashBits).parseAll(dataset);
+        }
+        dataset.trim();
+        dataset.dimensionality = Math.max(dataset.dimensionality, TokenHashingParser.dimensionality(hashBits));
+        return dataset;
+    }
+
+    // Opens a LIBSVM source: .bz2 is block-decoded in parallel, .gz is inflated on a read-ahead thread
+    public static InputStream openLibSVMInput(String filePath, int threads) throws IOException {
+        if (filePath.endsWith(".bz2")) {
+            return new Bzip2ParallelInputStream(Paths.get(filePath), Math.max(1, threads));
+        }
+        if (filePath.endsWith(".gz")) {
+            return new ReadAheadInputStream(new GZIPInputStream(new FileInputStream(filePath), 1 << 16), 1 << 20, 4);
+        }
+        return new FileInputStream(filePath);
+    }
+
+    public static boolean isCompressed(String filePath) {
+        return filePath.endsWith(".bz2") || filePath.endsWith(".gz");
+    }
+
+    // Pulls a source stream on a background thread, so inflating overlaps with parsing and training
+    public static class ReadAheadInputStream extends InputStream {
+        private static final byte[] END = new byte[0];
+
+        private final BlockingQueue<byte[]> chunks;
+        private final Thread reader;
+        private volatile IOException failure;
+        private byte[] current = new byte[0];
+        private int pos;
+        private boolean done;
+
+        public ReadAheadInputStream(InputStream source, int chunkSize, int chunksAhead) {
+            this.chunks = new ArrayBlockingQueue<>(Math.max(1, chunksAhead));
+            this.reader = new Thread(() -> {
+                try (InputStream in = source) {
+                    while (true) {
+                        byte[] chunk = new byte[chunkSize];
+                        int filled = 0;
+                        int n;
+                        while (filled < chunkSize && (n = in.read(chunk, filled, chunkSize - filled)) > 0) {
+                            filled += n;
+                        }
+                        if (filled > 0) {
+                            chunks.put(filled == chunkSize ? chunk : Arrays.copyOf(chunk, filled));
+                        }
+                        if (filled < chunkSize) {
+                            break;
+                        }
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    chunks.put(END);
+                } catch (InterruptedException e) {
+                    // closed by the consumer
+                }
+            }, "libsvm-read-ahead");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private boolean fill() throws IOException {
+            while (pos == current.length) {
+                if (done) {
+                    return false;
+                }
+                try {
+                    current = chunks.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while reading ahead");
+                }
+                pos = 0;
+                if (current == END) {
+                    done = true;
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    return false;
+                }
+            }
+            return true;
         }
-    
+
         @Override
-        public boolean Value_Prediction(List<Feature> featureList) {
-            float raw_model_score = product(featureList);
-            return raw_model_score >= 0;
+        public int read() throws IOException {
+            return fill() ? current[pos++] & 0xff : -1;
         }
-    
+
         @Override
-        public boolean Internal_weiight_update(List<Feature> featureList, boolean Given_Sign) {
-            if (Given_Sign) {
-                totalPositiveExamples++;
-            } else {
-                totalNegativeExamples++;
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
             }
-            for (Feature f : featureList) {
-                int weightIndex = f.featureIndex;
-                if (Given_Sign) {
-                    positiveFeatureCounts.put(weightIndex, positiveFeatureCounts.getOrDefault(weightIndex, 0) + 1);
-                } else {
-                    negativeFeatureCounts.put(weightIndex, negativeFeatureCounts.getOrDefault(weightIndex, 0) + 1);
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, current.length - pos);
+            System.arraycopy(current, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            reader.interrupt();
+        }
+    }
+
+    // bzip2 blocks are independent, so a scanner thread finds each block's 48-bit magic
+    // (at any bit offset), workers decode blocks concurrently, and read() serves them in order
+    public static class Bzip2ParallelInputStream extends InputStream {
+        private static final int SCAN_CHUNK = 4 << 20;
+
+        private static class DecodedBlock {
+            long startBit;
+            long endBit;
+            byte[] data;
+            int length;
+            IOException failure;
+        }
+
+        private final FileChannel channel;
+        private final ExecutorService workers;
+        private final BlockingQueue<Future<DecodedBlock>> pending;
+        private final Future<DecodedBlock> endMarker =
+            CompletableFuture.completedFuture(null);
+        private final Thread scanner;
+        private volatile IOException scanFailure;
+        private final ThreadLocal<Bzip2BlockDecoder> decoders = ThreadLocal.withInitial(Bzip2BlockDecoder::new);
+
+        private byte[] current = new byte[0];
+        private int pos;
+        private int limit;
+        private long previousEndBit = 0;
+        private boolean done;
+
+        public Bzip2ParallelInputStream(Path path, int threads) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            ByteBuffer header = ByteBuffer.allocate(4);
+            channel.read(header, 0);
+            if (header.position() < 4 || header.get(0) != 'B' || header.get(1) != 'Z' || header.get(2) != 'h') {
+                channel.close();
+                throw new IOException(path + " is not a bzip2 file");
+            }
+            this.workers = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "bzip2-decoder");
+                t.setDaemon(true);
+                return t;
+            });
+            this.pending = new ArrayBlockingQueue<>(2 * threads + 2);
+            this.scanner = new Thread(this::scan, "bzip2-scanner");
+            scanner.setDaemon(true);
+            scanner.start();
+        }
+
+        private void scan() {
+            try {
+                ByteBuffer chunk = ByteBuffer.allocate(SCAN_CHUNK);
+                long window = 0;
+                long byteOffset = 0;
+                while (true) {
+                    chunk.clear();
+                    int n = channel.read(chunk, byteOffset);
+                    if (n <= 0) {
+                        break;
+                    }
+                    for (int i = 0; i < n; i++) {
+                        window = (window << 8) | (chunk.get(i) & 0xff);
+                        long bitsSeen = (byteOffset + i + 1) * 8;
+                        for (int shift = 0; shift < 8; shift++) {
+                            if (((window >>> shift) & Bzip2BlockDecoder.MAGIC_MASK) == Bzip2BlockDecoder.BLOCK_MAGIC
+                                && bitsSeen - shift >= 48 + 32) {
+                                long startBit = bitsSeen - shift - 48;
+                                pending.put(workers.submit(() -> decode(startBit)));
+                            }
+                        }
+                    }
+                    byteOffset += n;
                 }
+            } catch (IOException e) {
+                scanFailure = e;
+            } catch (InterruptedException e) {
+                return;
             }
-    
-            int classifier_label = Given_Sign ? 1 : -1;
-            float raw_model_score = product(featureList);
-            float Gradient = Helper_Function.logisticGrad(classifier_label * raw_model_score);
-            float scaledLearningRate = learningRateInitial / (1.0f + learningRateInitial * regularizationFactor * iterationCount);
-            for (Feature f : featureList) {
-                int weightIndex = f.featureIndex;
-                if (weightIndex < modelWeights.length) {
-                    modelWeights[weightIndex] -= scaledLearningRate * classifier_label * Gradient * f.featureValue;
+            try {
+                pending.put(endMarker);
+            } catch (InterruptedException e) {
+                // closed by the consumer
+            }
+        }
+
+        private DecodedBlock decode(long startBit) {
+            DecodedBlock block = new DecodedBlock();
+            block.startBit = startBit;
+            try {
+                long firstByte = startBit >>> 3;
+                int windowSize = (int) Math.min(Bzip2BlockDecoder.MAX_COMPRESSED_BLOCK, channel.size() - firstByte);
+                ByteBuffer in = ByteBuffer.allocate(windowSize);
+                while (in.hasRemaining() && channel.read(in, firstByte + in.position()) > 0) {
+                    // positional reads until the window is full or the file ends
                 }
+                Bzip2BlockDecoder decoder = decoders.get();
+                long endBitInWindow = decoder.decode(in.array(), in.position(), (int) (startBit & 7));
+                block.endBit = (firstByte << 3) + endBitInWindow;
+                block.data = Arrays.copyOf(decoder.output(), decoder.outputLength());
+                block.length = decoder.outputLength();
+            } catch (IOException | RuntimeException e) {
+                block.failure = e instanceof IOException ? (IOException) e : new IOException(e);
             }
-            modelBias -= scaledLearningRate * classifier_label * Gradient;
-            iterationCount++;
-            return raw_model_score >= 0;
+            return block;
         }
-    
-        @Override
-        public List<Feature> getTopFeatures() {
-            List<Feature> list = new ArrayList<>();
-            for (int i = 0; i < modelWeights.length; i++) {
-                list.add(new Feature(i, modelWeights[i]));
+
+        private boolean fill() throws IOException {
+            while (pos == limit) {
+                if (done) {
+                    return false;
+                }
+                DecodedBlock block;
+                try {
+                    Future<DecodedBlock> next = pending.take();
+                    if (next == endMarker) {
+                        done = true;
+                        if (scanFailure != null) {
+                            throw scanFailure;
+                        }
+                        return false;
+                    }
+                    block = next.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while decoding bzip2");
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause());
+                }
+                // A magic match inside the previous block's bits is a coincidence, not a block
+                if (block.startBit < previousEndBit) {
+                    continue;
+                }
+                if (block.failure != null) {
+                    throw new IOException("Corrupt bzip2 block at bit " + block.startBit, block.failure);
+                }
+                previousEndBit = block.endBit;
+                current = block.data;
+                pos = 0;
+                limit = block.length;
             }
-            list.sort((a, b) -> Float.compare(Math.abs(b.featureValue), Math.abs(a.featureValue)));
-            return list.size() > topKFeatures ? list.subList(0, topKFeatures) : list;
+            return true;
         }
-    
+
         @Override
-        public float Learning_update() {
-            return modelBias;
+        public int read() throws IOException {
+            return fill() ? current[pos++] & 0xff : -1;
         }
-    
-        public Map<Integer, Double> getTopFeaturesPMI() {
-            List<Feature> topFeatures = getTopFeatures();
-            Map<Integer, Double> featureAssociationMap = new HashMap<>();
-            for (Feature f : topFeatures) {
-                double associationScore = computePMI(f.featureIndex, true);
-                featureAssociationMap.put(f.featureIndex, associationScore);
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
             }
-            return featureAssociationMap;
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(current, pos, b, off, n);
+            pos += n;
+            return n;
         }
-    }
-    
-    
 
-    // Training 
-    public static class TrainResult {
-        public long runtimeMs;
-        public int incorrectPredictions;
-        public int count;
-        public TrainResult(long runtimeMs, int incorrectPredictions, int count) {
-            this.runtimeMs = runtimeMs;
-            this.incorrectPredictions = incorrectPredictions;
-            this.count = count;
+        @Override
+        public void close() throws IOException {
+            scanner.interrupt();
+            workers.shutdownNow();
+            channel.close();
         }
     }
 
-    public static TrainResult train(TopKFeatures model, SparseDataset dataset,
-                                    int iters, int epochs, int initial_Parameter, boolean sample) {
-        int incorrectPredictions = 0;
-        int count = 0;
-        long startTime = System.currentTimeMillis();
-        Random rand = new Random(initial_Parameter);
-        if (iters == 0) {
-            for (int e = 0; e < epochs; e++) {
-                for (SparseExample example : dataset.examples) {
-                    boolean predictedLabel = model.Internal_weiight_update(example.featureList, example.Given_Sign == 1);
-                    if (predictedLabel != (example.Given_Sign == 1)) incorrectPredictions++;
-                    count++;
+    // Decodes one bzip2 block: Huffman/MTF/RLE2 -> inverse BWT -> RLE1, checked against the block CRC
+    public static class Bzip2BlockDecoder {
+        static final long BLOCK_MAGIC = 0x314159265359L;
+        static final long MAGIC_MASK = 0xffffffffffffL;
+        static final int MAX_BLOCK = 900000;
+        // 20-bit codes for every symbol of a full block, plus tables, rounded up
+        static final int MAX_COMPRESSED_BLOCK = 2560 * 1024;
+        private static final int MAX_GROUPS = 6;
+        private static final int MAX_ALPHA = 258;
+        private static final int MAX_CODE_LEN = 20;
+        private static final int MAX_SELECTORS = 18002;
+        private static final int GROUP_SIZE = 50;
+        private static final int[] CRC_TABLE = new int[256];
+        static {
+            for (int i = 0; i < 256; i++) {
+                int c = i << 24;
+                for (int k = 0; k < 8; k++) {
+                    c = (c & 0x80000000) != 0 ? (c << 1) ^ 0x04c11db7 : c << 1;
                 }
+                CRC_TABLE[i] = c;
             }
-        } else {
-            for (int i = 0; i < iters; i++) {
-                SparseExample example = dataset.examples.get(rand.nextInt(dataset.examples.size()));
-                boolean predictedLabel = model.Internal_weiight_update(example.featureList, example.Given_Sign == 1);
-                if (predictedLabel != (example.Given_Sign == 1)) incorrectPredictions++;
-                count++;
+        }
+
+        private byte[] in;
+        private int inLength;
+        private int bytePos;
+        private long bitBuffer;
+        private int liveBits;
+
+        private final int[] tt = new int[MAX_BLOCK];
+        private final byte[] seqToUnseq = new byte[256];
+        private final byte[] selectors = new byte[MAX_SELECTORS];
+        private final int[][] codeLength = new int[MAX_GROUPS][MAX_ALPHA];
+        private final int[][] limit = new int[MAX_GROUPS][MAX_CODE_LEN + 2];
+        private final int[][] base = new int[MAX_GROUPS][MAX_CODE_LEN + 2];
+        private final int[][] perm = new int[MAX_GROUPS][MAX_ALPHA];
+        private final int[] minLen = new int[MAX_GROUPS];
+        private final int[] unzftab = new int[256];
+        private final int[] cftab = new int[257];
+        private byte[] out = new byte[1 << 20];
+        private int outLength;
+
+        public byte[] output() {
+            return out;
+        }
+
+        public int outputLength() {
+            return outLength;
+        }
+
+        private int bits(int n) throws IOException {
+            while (liveBits < n) {
+                if (bytePos >= inLength) {
+                    throw new EOFException("bzip2 block runs past the end of the input");
+                }
+                bitBuffer = (bitBuffer << 8) | (in[bytePos++] & 0xff);
+                liveBits += 8;
             }
+            liveBits -= n;
+            return (int) (bitBuffer >>> liveBits) & ((1 << n) - 1);
         }
-        long runtime = System.currentTimeMillis() - startTime;
-        return new TrainResult(runtime, incorrectPredictions, count);
-    }
 
-    public static class TestResult {
-        public long runtimeMs;
-        public float precision;
-        public float recall;
-        public TestResult(long runtimeMs, float precision, float recall) {
-            this.runtimeMs = runtimeMs;
-            this.precision = precision;
-            this.recall = recall;
+        // Decodes the block starting at bit firstBit of buf; returns the bit offset just past it
+        public long decode(byte[] buf, int length, int firstBit) throws IOException {
+            this.in = buf;
+            this.inLength = length;
+            this.bytePos = 0;
+            this.liveBits = 0;
+            this.outLength = 0;
+            bits(firstBit);
+
+            long magic = ((long) bits(24) << 24) | bits(24);
+            if (magic != BLOCK_MAGIC) {
+                throw new IOException("Missing bzip2 block header");
+            }
+            int storedCrc = (bits(16) << 16) | bits(16);
+            if (bits(1) != 0) {
+                throw new IOException("Randomised bzip2 blocks are not supported");
+            }
+            int origPtr = bits(24);
+
+            int numInUse = 0;
+            int inUse16 = bits(16);
+            for (int i = 0; i < 16; i++) {
+                if ((inUse16 & (0x8000 >>> i)) != 0) {
+                    int inUse = bits(16);
+                    for (int j = 0; j < 16; j++) {
+                        if ((inUse & (0x8000 >>> j)) != 0) {
+                            seqToUnseq[numInUse++] = (byte) (i * 16 + j);
+                        }
+                    }
+                }
+            }
+            if (numInUse == 0) {
+                throw new IOException("bzip2 block uses no symbols");
+            }
+            int alphaSize = numInUse + 2;
+
+            int nGroups = bits(3);
+            int nSelectors = bits(15);
+            if (nGroups < 2 || nGroups > MAX_GROUPS || nSelectors < 1) {
+                throw new IOException("Bad bzip2 Huffman group header");
+            }
+            byte[] mtfGroups = {0, 1, 2, 3, 4, 5};
+            for (int i = 0; i < nSelectors; i++) {
+                int j = 0;
+                while (bits(1) == 1) {
+                    if (++j >= nGroups) {
+                        throw new IOException("Bad bzip2 selector");
+                    }
+                }
+                byte group = mtfGroups[j];
+                System.arraycopy(mtfGroups, 0, mtfGroups, 1, j);
+                mtfGroups[0] = group;
+                if (i < MAX_SELECTORS) {
+                    selectors[i] = group;
+                }
+            }
+            nSelectors = Math.min(nSelectors, MAX_SELECTORS);
+
+            for (int t = 0; t < nGroups; t++) {
+                int curr = bits(5);
+                for (int i = 0; i < alphaSize; i++) {
+                    while (true) {
+                        if (curr < 1 || curr > MAX_CODE_LEN) {
+                            throw new IOException("Bad bzip2 code length");
+                        }
+                        if (bits(1) == 0) {
+                            break;
+                        }
+                        curr += bits(1) == 0 ? 1 : -1;
+                    }
+                    codeLength[t][i] = curr;
+                }
+                createDecodeTables(t, alphaSize);
+            }
+
+            int nblock = decodeSymbols(numInUse, nSelectors, alphaSize);
+            if (origPtr < 0 || origPtr >= Math.max(1, nblock)) {
+                throw new IOException("Bad bzip2 origPtr");
+            }
+
+            // Inverse BWT: tt[i] keeps its byte in the low 8 bits and the successor link above it
+            cftab[0] = 0;
+            for (int i = 1; i <= 256; i++) {
+                cftab[i] = cftab[i - 1] + unzftab[i - 1];
+            }
+            for (int i = 0; i < nblock; i++) {
+                int uc = tt[i] & 0xff;
+                tt[cftab[uc]++] |= i << 8;
+            }
+
+            // RLE1: four equal bytes are followed by a count of further repeats
+            int crc = 0xffffffff;
+            int tPos = nblock == 0 ? 0 : tt[origPtr] >>> 8;
+            int last = -1;
+            int run = 0;
+            for (int k = 0; k < nblock; k++) {
+                tPos = tt[tPos];
+                int ch = tPos & 0xff;
+                tPos >>>= 8;
+                if (run == 4) {
+                    for (int r = 0; r < ch; r++) {
+                        crc = emit(crc, last);
+                    }
+                    run = 0;
+                    last = -1;
+                    continue;
+                }
+                if (ch == last) {
+                    run++;
+                } else {
+                    last = ch;
+                    run = 1;
+                }
+                crc = emit(crc, ch);
+            }
+            if (~crc != storedCrc) {
+                throw new IOException("bzip2 block CRC mismatch");
+            }
+            return (long) bytePos * 8 - liveBits;
         }
-    }
 
-    public static TestResult test(TopKFeatures model, SparseDataset dataset) {
-        int tp = 0, fp = 0, fn = 0;
-        long startTime = System.currentTimeMillis();
-        for (SparseExample example : dataset.examples) {
-            boolean classifier_label = (example.Given_Sign == 1);
-            boolean predictedLabel = model.Value_Prediction(example.featureList);
-            if (classifier_label && predictedLabel) {
-                tp++;
-            }           
-            if (!classifier_label && predictedLabel) {
-                fp++;
-            }           
-            if (classifier_label && !predictedLabel) {
-                fn++;
-            }            
+        private int emit(int crc, int ch) {
+            if (outLength == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            out[outLength++] = (byte) ch;
+            return (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ ch) & 0xff];
         }
-        long runtime = System.currentTimeMillis() - startTime;
-        float precision = (tp + fp == 0) ? 1.0f : (float) tp / (tp + fp);
-        float recall = (tp + fn == 0) ? 1.0f : (float) tp / (tp + fn);
-        return new TestResult(runtime, precision, recall);
-    }
 
-    // Data Loading (LIBSVM Format)
-    public static SparseDataset readLibSVM(String filePath) throws IOException {
-        SparseDataset dataset = new SparseDataset();
-        BufferedReader br = new BufferedReader(new FileReader(filePath));
-        String line;
-        while ((line = br.readLine()) != null) {
-            line = line.trim();
-            if (line.isEmpty()) continue;
-            String[] tokens = line.split("\\s+");
-            int Given_Sign = Integer.parseInt(tokens[0]);
-            List<Feature> featureList = new ArrayList<>();
-            for (int i = 1; i < tokens.length; i++) {
-                String[] pair = tokens[i].split(":");
-                int featureIndex = Integer.parseInt(pair[0]);
-                float featureValue = Float.parseFloat(pair[1]);
-                featureList.add(new Feature(featureIndex, featureValue));
-                dataset.dimensionality = Math.max(dataset.dimensionality, featureIndex + 1);
-            }
-            dataset.examples.add(new SparseExample(Given_Sign, featureList));
-        }
-        br.close();
-        return dataset;
+        private void createDecodeTables(int t, int alphaSize) {
+            int[] length = codeLength[t];
+            int lo = MAX_CODE_LEN;
+            int hi = 0;
+            for (int i = 0; i < alphaSize; i++) {
+                lo = Math.min(lo, length[i]);
+                hi = Math.max(hi, length[i]);
+            }
+            int pp = 0;
+            for (int len = lo; len <= hi; len++) {
+                for (int j = 0; j < alphaSize; j++) {
+                    if (length[j] == len) {
+                        perm[t][pp++] = j;
+                    }
+                }
+            }
+            int[] b = base[t];
+            int[] l = limit[t];
+            Arrays.fill(b, 0);
+            Arrays.fill(l, 0);
+            for (int i = 0; i < alphaSize; i++) {
+                b[length[i] + 1]++;
+            }
+            for (int i = 1; i < b.length; i++) {
+                b[i] += b[i - 1];
+            }
+            int vec = 0;
+            for (int len = lo; len <= hi; len++) {
+                vec += b[len + 1] - b[len];
+                l[len] = vec - 1;
+                vec <<= 1;
+            }
+            for (int len = lo + 1; len <= hi; len++) {
+                b[len] = ((l[len - 1] + 1) << 1) - b[len];
+            }
+            for (int len = hi + 1; len < l.length; len++) {
+                l[len] = Integer.MAX_VALUE;
+            }
+            minLen[t] = lo;
+        }
+
+        // Huffman + MTF + RUNA/RUNB decoding into tt; returns the block length
+        private int decodeSymbols(int numInUse, int nSelectors, int alphaSize) throws IOException {
+            final int EOB = numInUse + 1;
+            byte[] mtf = new byte[256];
+            for (int i = 0; i < 256; i++) {
+                mtf[i] = (byte) i;
+            }
+            Arrays.fill(unzftab, 0);
+            int nblock = 0;
+            int groupNo = -1;
+            int groupPos = 0;
+            int group = 0;
+            int runLength = 0;
+            int runWeight = 1;
+            while (true) {
+                if (groupPos == 0) {
+                    if (++groupNo >= nSelectors) {
+                        throw new IOException("bzip2 block ran out of selectors");
+                    }
+                    groupPos = GROUP_SIZE;
+                    group = selectors[groupNo];
+                }
+                groupPos--;
+                int zn = minLen[group];
+                int zvec = bits(zn);
+                while (zvec > limit[group][zn]) {
+                    if (++zn > MAX_CODE_LEN) {
+                        throw new IOException("Bad bzip2 Huffman code");
+                    }
+                    zvec = (zvec << 1) | bits(1);
+                }
+                int index = zvec - base[group][zn];
+                if (index < 0 || index >= alphaSize) {
+                    throw new IOException("Bad bzip2 Huffman code");
+                }
+                int sym = perm[group][index];
+
+                if (sym <= 1) {
+                    runLength += (sym + 1) * runWeight;
+                    runWeight <<= 1;
+                    if (runWeight > MAX_BLOCK * 2) {
+                        throw new IOException("bzip2 run too long");
+                    }
+                    continue;
+                }
+                if (runLength > 0) {
+                    int uc = seqToUnseq[mtf[0] & 0xff] & 0xff;
+                    if (nblock + runLength > MAX_BLOCK) {
+                        throw new IOException("bzip2 block too large");
+                    }
+                    unzftab[uc] += runLength;
+                    Arrays.fill(tt, nblock, nblock + runLength, uc);
+                    nblock += runLength;
+                    runLength = 0;
+                    runWeight = 1;
+                }
+                if (sym == EOB) {
+                    return nblock;
+                }
+                if (nblock >= MAX_BLOCK) {
+                    throw new IOException("bzip2 block too large");
+                }
+                int nn = sym - 1;
+                byte v = mtf[nn];
+                System.arraycopy(mtf, 0, mtf, 1, nn);
+                mtf[0] = v;
+                int uc = seqToUnseq[v & 0xff] & 0xff;
+                unzftab[uc]++;
+                tt[nblock++] = uc;
+            }
+        }
     }
 
     // Command-Line Parsing and Main
@@ -996,7 +4706,7 @@ public static class TruncatedModel implements TopKFeatures {
         String trainingFilePath = argMap.get("train");
         String testingFilePath = argMap.getOrDefault("test", "");
         int Width_of_table = Integer.parseInt(argMap.getOrDefault("log2_width", "10"));
-        int Deep_Size = Integer.parseInt(argMap.getOrDefault("Deep_Size", "1"));
+        int Deep_Size = Integer.parseInt(argMap.getOrDefault("depth", argMap.getOrDefault("Deep_Size", "1")));
         int initial_Parameter = argMap.containsKey("initial_Parameter") ? Integer.parseInt(argMap.get("initial_Parameter"))
                                               : (int)System.currentTimeMillis();
         int iters = Integer.parseInt(argMap.getOrDefault("iters", "0"));
@@ -1008,21 +4718,93 @@ public static class TruncatedModel implements TopKFeatures {
         boolean medianUpdate = argMap.containsKey("median_update");
         boolean noBias = argMap.containsKey("no_bias");
         boolean sample = argMap.containsKey("sample");
-
-        System.err.println("Reading training data from " + trainingFilePath);
-        SparseDataset trainDataset = null;
+        int loadThreads = Integer.parseInt(argMap.getOrDefault("load_threads",
+                              String.valueOf(Runtime.getRuntime().availableProcessors())));
+        boolean stream = argMap.containsKey("stream");
+        int trainThreads = Integer.parseInt(argMap.getOrDefault("train_threads", "1"));
+        int syncEvery = Integer.parseInt(argMap.getOrDefault("sync_every", "0"));
+        int batchSize = Integer.parseInt(argMap.getOrDefault("batch_size", "1"));
+        boolean tokens = argMap.getOrDefault("format", "libsvm").equals("tokens");
+        int hashBits = Integer.parseInt(argMap.getOrDefault("hash_bits", "20"));
+        if (!tokens && !argMap.getOrDefault("format", "libsvm").equals("libsvm")) {
+            System.err.println("Error: invalid format " + argMap.get("format"));
+            System.err.println("Options: libsvm, tokens");
+            System.exit(1);
+        }
+        if (hashBits < 1 || hashBits > 30) {
+            System.err.println("Error: --hash_bits must be between 1 and 30");
+            System.exit(1);
+        }
+        String hashFamily = argMap.getOrDefault("hash", "murmur");
+        if (!Arrays.asList(HashFamily.NAMES).contains(hashFamily)) {
+            System.err.println("Error: invalid hash " + hashFamily);
+            System.err.println("Options: " + String.join(", ", HashFamily.NAMES));
+            System.exit(1);
+        }
+        String counterType = argMap.getOrDefault("counters", "float");
+        if (!Arrays.asList(CounterArray.TYPES).contains(counterType)) {
+            System.err.println("Error: invalid counters " + counterType);
+            System.err.println("Options: " + String.join(", ", CounterArray.TYPES));
+            System.exit(1);
+        }
+        String sigmoid = argMap.getOrDefault("sigmoid", "exact");
         try {
-            long start = System.currentTimeMillis();
-            trainDataset = readLibSVM(trainingFilePath);
-            long dataLoadMs = System.currentTimeMillis() - start;
-            System.err.println("Read training data in " + dataLoadMs + "ms");
-        } catch (IOException e) {
-            System.err.println("Error reading training data: " + e.getMessage());
+            Helper_Function.setSigmoidMode(Helper_Function.SigmoidMode.valueOf(sigmoid.toUpperCase()));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: invalid sigmoid " + sigmoid);
+            System.err.println("Options: exact, table, rational");
+            System.exit(1);
+        }
+        int servePort = Integer.parseInt(argMap.getOrDefault("serve_port", "0"));
+        int serveThreads = Integer.parseInt(argMap.getOrDefault("serve_threads", "1"));
+        int publishEvery = Integer.parseInt(argMap.getOrDefault("publish_every", "10000"));
+        if (servePort > 0 && !stream) {
+            System.err.println("Error: --serve_port scores while training on a stream and needs --stream");
+            System.exit(1);
+        }
+        if (stream && (epochs != 1 || iters != 0 || batchSize > 1 || trainThreads > 1)) {
+            System.err.println("Error: --stream trains one pass, one example at a time, and cannot be used with"
+                               + " --epochs, --iters, --batch_size or --train_threads");
+            System.exit(1);
+        }
+        if (batchSize > 1 && trainThreads > 1) {
+            System.err.println("Error: --batch_size and --train_threads cannot be used together");
+            System.exit(1);
+        }
+        if (batchSize > 1 && iters != 0) {
+            System.err.println("Error: --batch_size trains full passes and cannot be used with --iters");
             System.exit(1);
         }
+        String cacheDir = argMap.containsKey("no_cache") ? null
+                        : argMap.getOrDefault("cache_dir", System.getProperty("java.io.tmpdir") + File.separator + "wmsketch-cache");
+
+        CsrDataset trainDataset = null;
+        int dimensionality = 0;
+        if (stream) {
+            if (tokens) {
+                dimensionality = TokenHashingParser.dimensionality(hashBits);
+            } else if (topKFeatures == 0) {
+                System.err.println("Error: --topk=0 needs the full dimensionality and cannot be used with --stream");
+                System.exit(1);
+            }
+            System.err.println("Streaming training data from " + (trainingFilePath.equals("-") ? "stdin" : trainingFilePath));
+        } else {
+            try {
+                System.err.println("Reading training data from " + trainingFilePath);
+                long start = System.currentTimeMillis();
+                trainDataset = tokens ? readTokensCsr(trainingFilePath, hashBits, loadThreads)
+                                      : loadLibSVM(trainingFilePath, loadThreads, cacheDir);
+                long dataLoadMs = System.currentTimeMillis() - start;
+                System.err.println("Read training data in " + dataLoadMs + "ms");
+                dimensionality = trainDataset.dimensionality;
+            } catch (IOException e) {
+                System.err.println("Error reading training data: " + e.getMessage());
+                System.exit(1);
+            }
+        }
         
                 if (topKFeatures == 0) {
-                    topKFeatures = trainDataset.dimensionality;
+                    topKFeatures = dimensionality;
                 }
         
                 JSONObject params = new JSONObject();
@@ -1030,36 +4812,91 @@ public static class TruncatedModel implements TopKFeatures {
                 System.err.println(params.toString(2));
         
                 TopKFeatures model = null;
-                switch (method) {
-                    case "UncompressedLogisticRegression":
-                        model = new UncompressedLogisticRegression(trainDataset.dimensionality, topKFeatures, learningRateInitial, regularizationFactor, noBias);
-                        break;
-                    case "WMSketch":
-                        model = new WMSketch(trainDataset.dimensionality, Width_of_table, Deep_Size, initial_Parameter, learningRateInitial, regularizationFactor, medianUpdate, topKFeatures);
-                        break;
-                    case "AWMsketch":
-                        model = new AWMsketch(trainDataset.dimensionality, topKFeatures, Width_of_table, Deep_Size, initial_Parameter, learningRateInitial, regularizationFactor);
-                        break;
-                    case "TruncatedModel":
-                        model = new TruncatedModel(topKFeatures, learningRateInitial, regularizationFactor);
-                        break;
-                    case "PMI":
-                        model = new PMI(trainDataset.dimensionality, topKFeatures, learningRateInitial, regularizationFactor);
-                        break;
-                    default:
+                if (argMap.containsKey("load_model")) {
+                    // Training continues from the snapshot; its method and shape override the flags
+                    try {
+                        long start = System.nanoTime();
+                        model = ModelSnapshot.load(new File(argMap.get("load_model")).toPath());
+                        method = model.getClass().getSimpleName();
+                        params.put("method", method);
+                        System.err.println("Loaded " + method + " from " + argMap.get("load_model") + " in "
+                                           + (System.nanoTime() - start) / 1000 + "us");
+                    } catch (IOException e) {
+                        System.err.println("Error loading model: " + e.getMessage());
+                        System.exit(1);
+                    }
+                } else {
+                    try {
+                        model = createModel(method, dimensionality, Width_of_table, Deep_Size, initial_Parameter,
+                                            learningRateInitial, regularizationFactor, medianUpdate, noBias, topKFeatures, hashFamily,
+                                            counterType);
+                    } catch (IllegalArgumentException e) {
                         System.err.println("Error: invalid method " + method);
-                        System.err.println("Options: UncompressedLogisticRegression, WMSketch, AWMsketch, TruncatedModel, PMI");
+                        System.err.println("Options: " + String.join(", ", METHODS));
                         System.exit(1);
+                    }
                 }
         
                 // Train
-                TrainResult trainingResults = train(model, trainDataset, iters, epochs, initial_Parameter, sample);
+                TrainResult trainingResults = null;
+                SnapshotPublisher publisher = null;
+                if (servePort > 0) {
+                    // Readers score the latest published snapshot while this thread keeps training
+                    publisher = new SnapshotPublisher(model, publishEvery);
+                    try {
+                        ScoringServer server = new ScoringServer(publisher, Math.max(1, serveThreads));
+                        Thread serving = new Thread(() -> {
+                            try {
+                                server.serve(argMap.getOrDefault("serve_host", "127.0.0.1"), servePort);
+                            } catch (IOException e) {
+                                System.err.println("Error serving on port " + servePort + ": " + e.getMessage());
+                                System.exit(1);
+                            }
+                        }, "scoring-acceptor");
+                        serving.setDaemon(true);
+                        serving.start();
+                    } catch (IOException e) {
+                        System.err.println("Error starting scoring server: " + e.getMessage());
+                        System.exit(1);
+                    }
+                }
+                if (stream) {
+                    try (InputStream in = trainingFilePath.equals("-") ? System.in : openLibSVMInput(trainingFilePath, loadThreads)) {
+                        trainingResults = trainStream(model, tokens ? new TokenHashingParser(in, hashBits) : new LibSVMParser(in), publisher);
+                    } catch (IOException e) {
+                        System.err.println("Error reading training data: " + e.getMessage());
+                        System.exit(1);
+                    }
+                } else if (batchSize > 1) {
+                    trainingResults = trainBatched(model, trainDataset, epochs, batchSize);
+                } else if (trainThreads > 1 && iters == 0 && model.getClass() == UncompressedLogisticRegression.class) {
+                    trainingResults = trainHogwild((UncompressedLogisticRegression) model, trainDataset, epochs, trainThreads);
+                } else if (trainThreads > 1 && iters == 0 && model instanceof WMSketch) {
+                    trainingResults = trainReplicas((WMSketch) model, trainDataset, epochs, trainThreads, syncEvery);
+                } else if (trainThreads > 1 && iters == 0 && model instanceof AWMsketch) {
+                    trainingResults = trainReplicas((AWMsketch) model, trainDataset, epochs, trainThreads, syncEvery);
+                } else {
+                    if (trainThreads > 1) {
+                        System.err.println("Warning: --train_threads only applies to full passes of UncompressedLogisticRegression, WMSketch and AWMsketch; training on one thread");
+                    }
+                    trainingResults = train(model, trainDataset, iters, epochs, initial_Parameter, sample);
+                }
                 JSONObject results = new JSONObject();
                 results.put("Training_time", trainingResults.runtimeMs);
                 results.put("Train_Error_Count", trainingResults.incorrectPredictions);
                 results.put("Total_no_of_features_trained", trainingResults.count);
                 results.put("Train_error_rate", (double) trainingResults.incorrectPredictions / trainingResults.count);
                 results.put("Learning_b", model.Learning_update());
+
+                if (argMap.containsKey("save_model")) {
+                    try {
+                        ModelSnapshot.save(model, new File(argMap.get("save_model")).toPath());
+                        System.err.println("Saved model to " + argMap.get("save_model"));
+                    } catch (IOException e) {
+                        System.err.println("Error saving model: " + e.getMessage());
+                        System.exit(1);
+                    }
+                }
         
         
         List<Feature> topFeaturesList = model.getTopFeatures();
@@ -1089,6 +4926,11 @@ public static class TruncatedModel implements TopKFeatures {
         sb.append("  Train error count: " + trainingResults.incorrectPredictions + "\n");
         sb.append("  Train count: " + trainingResults.count + "\n");
         sb.append("  Train error rate: " + ((double) trainingResults.incorrectPredictions / trainingResults.count) + "\n");
+        sb.append("  Train throughput (examples/s): " + (trainingResults.count * 1000L / Math.max(1, trainingResults.runtimeMs)) + "\n");
+        sb.append("  Model memory: " + model.memoryFootprint() + "\n");
+        if (publisher != null) {
+            sb.append("  Published: " + publisher.summary() + "\n");
+        }
         sb.append("  Bias: " + model.Learning_update() + "\n");
         sb.append("  Top indices: " + indices.toString() + "\n");
         sb.append("  Top weights: " + weightsList.toString() + "\n");
@@ -1097,5 +4939,15 @@ public static class TruncatedModel implements TopKFeatures {
             sb.append("  Top feature PMI: " + pmModel.getTopFeaturesPMI().toString() + "\n");
         }
         System.out.println(sb.toString());
+
+        if (publisher != null) {
+            // The final snapshot stays up until the process is stopped
+            System.err.println("Training finished; still serving on port " + servePort);
+            try {
+                Thread.currentThread().join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 }